@@ -0,0 +1,107 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/* A bounded pool of connections: at most maxConnections connections are lent out at the same time, and a returned connection
+    is kept (along with its cached prepared statements, see GigSystem.prepare) for the next caller instead of being closed.
+    Connections are opened lazily by the given factory, e.g. GigSystem::getPortConnection. */
+public class ConnectionPool implements AutoCloseable {
+
+    private final Callable<Connection> factory;
+    private final Semaphore permits;
+    private final long timeoutMillis;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+
+    public ConnectionPool(Callable<Connection> factory, int maxConnections, long timeoutMillis){
+        if(maxConnections <= 0){
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        this.factory = factory;
+        this.permits = new Semaphore(maxConnections, true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // This method waits (at most timeoutMillis) for a free connection, and opens a new one if no idle connection is left.
+    public Connection borrow() throws SQLException{
+        if(closed){
+            throw new SQLException("Connection pool is closed", "08003");
+        }
+        try{
+            if(!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)){
+                throw new SQLException("No connection available within " + timeoutMillis + " ms", "08004");
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", "08004", e);
+        }
+        try{
+            Connection conn = idle.poll();
+            // A connection may be closed by the server while it is idle, so it is replaced.
+            while(conn != null && conn.isClosed()){
+                GigSystem.forgetStatements(conn);
+                conn = idle.poll();
+            }
+            if(conn == null){
+                conn = factory.call();
+            }
+            if(conn == null){
+                throw new SQLException("Connection could not be opened", "08001");
+            }
+            return conn;
+        }catch(Exception e){
+            permits.release();
+            if(e instanceof SQLException){
+                throw (SQLException) e;
+            }
+            throw new SQLException("Connection could not be opened", "08001", e);
+        }
+    }
+
+    // This method gives a connection back. A transaction left open (e.g. by an error) is rolled back first.
+    public void release(Connection conn){
+        try{
+            if(closed || conn.isClosed()){
+                discard(conn);
+                return;
+            }
+            if(!conn.getAutoCommit()){
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            idle.offer(conn);
+        }catch(SQLException e){
+            discard(conn);
+        }finally{
+            permits.release();
+        }
+    }
+
+    // The amount of connections which are opened and not lent out.
+    public int idleConnections(){
+        return idle.size();
+    }
+
+    private void discard(Connection conn){
+        GigSystem.forgetStatements(conn);
+        try{
+            conn.close();
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+        }
+    }
+
+    // Closes all idle connections. Connections still lent out are closed when they are given back.
+    @Override
+    public void close(){
+        closed = true;
+        Connection conn;
+        while((conn = idle.poll()) != null){
+            discard(conn);
+        }
+    }
+}
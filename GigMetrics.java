@@ -0,0 +1,324 @@
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/* GigMetrics measures every option of GigSystem (an "operation") and every SQL statement it runs, and prints them in the Prometheus text format (see prometheus()):
+    (1) Latency histogram of each operation and of each statement (by its SQL, e.g. CALL insertTicket(?, ?, ?, ?)).
+    (2) Round trips (statements executed) and rows fetched by each operation, including those of the operations it calls (e.g. maintainCheck).
+    (3) Outcomes of each operation: the notices raised by the database (e.g. NO AVAILABLE SEAT, GIG N: TIME CONFLICT, with numbers replaced by N), the
+        outcomes returned (e.g. BOOKED), ERROR if it ends with an SQLException, or OK if none of these.
+    (4) Slow-query log: a statement slower than slowQueryMillis is printed to stderr with its operation and bind parameters, for a sample of them.
+        They can be set with -Dgigsystem.slowQueryMillis=n and -Dgigsystem.slowQuerySample=0.0 .. 1.0.
+        Parameters other than numbers, booleans, and times (e.g. CustomerName and CustomerEmail) are masked to their type and length, as the log must
+        not hold personal data. They are printed in full only with -Dgigsystem.logParameters=true (e.g. on a test database).
+    Statements are measured by wrapping the statements cached by GigSystem.prepare, so no option needs to count them itself. */
+public final class GigMetrics {
+
+    private static volatile long slowQueryNanos = Long.getLong("gigsystem.slowQueryMillis", 100) * 1_000_000L;
+    private static volatile double slowQuerySample = Double.parseDouble(System.getProperty("gigsystem.slowQuerySample", "1.0"));
+    private static volatile boolean logParameters = Boolean.getBoolean("gigsystem.logParameters");
+
+    // The upper bounds of the histogram buckets in seconds (the last bucket, +Inf, is implied).
+    private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final ConcurrentHashMap<String, Histogram> operations = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> statements = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> roundTrips = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> rows = new ConcurrentHashMap<>();
+    // Keyed by operation and outcome, separated by a tab.
+    private static final ConcurrentHashMap<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+    // What the current thread has done so far, so that an operation can count the round trips and rows of its statements (and of the operations it calls).
+    private static final class ThreadCounters {
+        long roundTrips;
+        long rows;
+        Timer current;
+    }
+
+    private static final ThreadLocal<ThreadCounters> counters = ThreadLocal.withInitial(ThreadCounters::new);
+
+    private GigMetrics(){
+    }
+
+    public static void setSlowQueryMillis(long millis){
+        slowQueryNanos = millis * 1_000_000L;
+    }
+
+    public static void setSlowQuerySample(double sample){
+        slowQuerySample = sample;
+    }
+
+    public static void setLogParameters(boolean full){
+        logParameters = full;
+    }
+
+    // This method gives a bind parameter as the slow-query log prints it: a string only by its length (e.g. VARCHAR(len=12)) and an array or any other
+    // object only by its type, unless full parameters are logged.
+    static String maskParameter(Object value){
+        if(logParameters || value == null || value instanceof Number || value instanceof Boolean || value instanceof Date){
+            return String.valueOf(value);
+        }
+        if(value instanceof String){
+            return "VARCHAR(len=" + ((String) value).length() + ")";
+        }
+        if(value instanceof Array){
+            try{
+                return ((Array) value).getBaseTypeName() + "[]";
+            }catch(SQLException e){
+                return "ARRAY";
+            }
+        }
+        return value.getClass().getSimpleName();
+    }
+
+    // A histogram of latencies, with a counter for each bucket (not cumulative until it is printed).
+    static final class Histogram {
+        final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        final LongAdder count = new LongAdder();
+        final LongAdder sumNanos = new LongAdder();
+
+        Histogram(){
+            for(int i = 0; i < buckets.length; i++){
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos){
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while(bucket < BUCKETS.length && seconds > BUCKETS[bucket]){
+                bucket++;
+            }
+            buckets[bucket].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    /* A Timer measures one call of an operation, from begin() to close(). Use it in a try-finally block.*/
+    public static final class Timer implements AutoCloseable {
+        private final String operation;
+        private final long start;
+        private final long startRoundTrips;
+        private final long startRows;
+        private final Timer parent;
+        private boolean outcome = false;
+        private boolean failed = false;
+
+        private Timer(String operation, ThreadCounters thread){
+            this.operation = operation;
+            this.parent = thread.current;
+            this.startRoundTrips = thread.roundTrips;
+            this.startRows = thread.rows;
+            this.start = System.nanoTime();
+        }
+
+        // Counts an outcome of this call, e.g. the outcome of each ticket of a batch.
+        public void outcome(String name){
+            outcome = true;
+            count(outcomes, operation + "\t" + name, 1);
+        }
+
+        public void error(SQLException e){
+            failed = true;
+        }
+
+        @Override
+        public void close(){
+            long nanos = System.nanoTime() - start;
+            ThreadCounters thread = counters.get();
+            thread.current = parent;
+            operations.computeIfAbsent(operation, k -> new Histogram()).record(nanos);
+            count(roundTrips, operation, thread.roundTrips - startRoundTrips);
+            count(rows, operation, thread.rows - startRows);
+            if(failed){
+                outcome("ERROR");
+            }else if(!outcome){
+                outcome("OK");
+            }
+        }
+    }
+
+    public static Timer begin(String operation){
+        ThreadCounters thread = counters.get();
+        Timer timer = new Timer(operation, thread);
+        thread.current = timer;
+        return timer;
+    }
+
+    // Counts an outcome of an operation which ends without a Timer, e.g. a line-up rejected before any statement.
+    public static void outcome(String operation, String name){
+        count(outcomes, operation + "\t" + name, 1);
+    }
+
+    private static void count(ConcurrentHashMap<String, LongAdder> counter, String key, long amount){
+        counter.computeIfAbsent(key, k -> new LongAdder()).add(amount);
+    }
+
+    // This method wraps a prepared statement, so that each execution (and each row fetched from it) is measured.
+    static PreparedStatement instrument(PreparedStatement statement, String sql){
+        return (PreparedStatement) Proxy.newProxyInstance(GigMetrics.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, new StatementHandler(statement, sql));
+    }
+
+    private static final class StatementHandler implements InvocationHandler {
+        private final PreparedStatement statement;
+        private final String sql;
+        private final Histogram histogram;
+        // The bind parameters of the next execution, for the slow-query log.
+        private Object[] parameters = new Object[4];
+        private int parameterCount = 0;
+
+        StatementHandler(PreparedStatement statement, String sql){
+            this.statement = statement;
+            this.sql = sql;
+            this.histogram = statements.computeIfAbsent(sql, k -> new Histogram());
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+            String name = method.getName();
+            if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer){
+                int index = (Integer) args[0];
+                if(index >= parameters.length){
+                    parameters = Arrays.copyOf(parameters, Math.max(index + 1, parameters.length * 2));
+                }
+                parameters[index] = name.equals("setNull") ? null : args[1];
+                parameterCount = Math.max(parameterCount, index);
+            }else if(name.equals("clearParameters")){
+                Arrays.fill(parameters, null);
+                parameterCount = 0;
+            }
+            boolean execution = (args == null || args.length == 0) && (name.equals("execute") || name.equals("executeQuery") || name.equals("executeUpdate"));
+            if(!execution){
+                return call(method, args);
+            }
+
+            ThreadCounters thread = counters.get();
+            thread.roundTrips++;
+            long start = System.nanoTime();
+            try{
+                Object result = call(method, args);
+                return result instanceof ResultSet ? countRows((ResultSet) result, thread) : result;
+            }finally{
+                long nanos = System.nanoTime() - start;
+                histogram.record(nanos);
+                countNotices(thread);
+                if(nanos > slowQueryNanos && ThreadLocalRandom.current().nextDouble() < slowQuerySample){
+                    String[] logged = new String[parameterCount];
+                    for(int i = 0; i < parameterCount; i++){
+                        logged[i] = maskParameter(parameters[i + 1]);
+                    }
+                    System.err.format("SLOW QUERY %.1f ms [%s] %s parameters %s\n", nanos / 1e6, thread.current == null ? "-" : thread.current.operation,
+                        sql, Arrays.toString(logged));
+                }
+            }
+        }
+
+        private Object call(Method method, Object[] args) throws Throwable{
+            try{
+                return method.invoke(statement, args);
+            }catch(InvocationTargetException e){
+                throw e.getCause();
+            }
+        }
+
+        // Each notice of the database (a warning of the statement) is counted as an outcome of the current operation.
+        private void countNotices(ThreadCounters thread){
+            try{
+                SQLWarning warning = statement.getWarnings();
+                if(warning == null){
+                    return;
+                }
+                while(warning != null){
+                    String notice = warning.getMessage().replaceAll("\\d+", "N");
+                    if(thread.current != null){
+                        thread.current.outcome(notice);
+                    }
+                    warning = warning.getNextWarning();
+                }
+                statement.clearWarnings();
+            }catch(SQLException e){
+                // The statement is closed, so there is nothing to count.
+            }
+        }
+    }
+
+    // This method wraps a result set, so that the rows fetched are counted to the thread which reads them.
+    private static ResultSet countRows(ResultSet result, ThreadCounters thread){
+        return (ResultSet) Proxy.newProxyInstance(GigMetrics.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+            Object value;
+            try{
+                value = method.invoke(result, args);
+            }catch(InvocationTargetException e){
+                throw e.getCause();
+            }
+            if(method.getName().equals("next") && Boolean.TRUE.equals(value)){
+                thread.rows++;
+            }
+            return value;
+        });
+    }
+
+    /* This method prints all metrics in the Prometheus text format, e.g. for an HTTP endpoint (see GigServer /metrics).*/
+    public static String prometheus(){
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP gigsystem_operation_duration_seconds Latency of each GigSystem operation.\n");
+        out.append("# TYPE gigsystem_operation_duration_seconds histogram\n");
+        for(Map.Entry<String, Histogram> operation : new TreeMap<>(operations).entrySet()){
+            appendHistogram(out, "gigsystem_operation_duration_seconds", "operation", operation.getKey(), operation.getValue());
+        }
+        out.append("# HELP gigsystem_statement_duration_seconds Latency of each SQL statement (execution only, not fetching).\n");
+        out.append("# TYPE gigsystem_statement_duration_seconds histogram\n");
+        for(Map.Entry<String, Histogram> statement : new TreeMap<>(statements).entrySet()){
+            appendHistogram(out, "gigsystem_statement_duration_seconds", "statement", statement.getKey(), statement.getValue());
+        }
+        appendCounter(out, "gigsystem_operation_round_trips_total", "Statements executed by each operation.", roundTrips);
+        appendCounter(out, "gigsystem_operation_rows_total", "Rows fetched by each operation.", rows);
+        out.append("# HELP gigsystem_operation_outcomes_total Outcomes (notices, results, errors) of each operation.\n");
+        out.append("# TYPE gigsystem_operation_outcomes_total counter\n");
+        for(Map.Entry<String, LongAdder> outcome : new TreeMap<>(outcomes).entrySet()){
+            String[] key = outcome.getKey().split("\t", 2);
+            out.append("gigsystem_operation_outcomes_total{operation=\"").append(escape(key[0])).append("\",outcome=\"").append(escape(key[1])).append("\"} ")
+                .append(outcome.getValue().sum()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String metric, String label, String value, Histogram histogram){
+        String labels = label + "=\"" + escape(value) + "\"";
+        long cumulative = 0;
+        for(int i = 0; i < histogram.buckets.length; i++){
+            cumulative += histogram.buckets[i].sum();
+            String bound = i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf";
+            out.append(metric).append("_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(metric).append("_sum{").append(labels).append("} ").append(histogram.sumNanos.sum() / 1e9).append('\n');
+        out.append(metric).append("_count{").append(labels).append("} ").append(histogram.count.sum()).append('\n');
+    }
+
+    private static void appendCounter(StringBuilder out, String metric, String help, ConcurrentHashMap<String, LongAdder> counter){
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(metric).append(" counter\n");
+        for(Map.Entry<String, LongAdder> entry : new TreeMap<>(counter).entrySet()){
+            out.append(metric).append("{operation=\"").append(escape(entry.getKey())).append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    private static String escape(String value){
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,325 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/* GigServer serves the options of a GigService to concurrent clients over HTTP (on localhost by default). Each request runs on its own virtual thread
+    where the JDK has them (Java 21 and later), or on a thread of a cached pool otherwise, and borrows a pooled connection only while it runs.
+    Requests are grouped into operations, and each operation has its own limit of concurrent requests, so that slow reports (e.g. option 7) can only
+    hold a few connections and bookings still get theirs. A request which waits longer than timeoutMillis for its operation is refused with 503.
+    Every response is text/plain, one row per line with tab-separated columns:
+    (1) GET  /lineup?gig=ID                                  [lineup]  option 1
+    (2) POST /book?gig=ID&name=NAME&email=EMAIL&type=A       [booking] option 3, returns the outcome (e.g. BOOKED, NO AVAILABLE SEAT)
+    (3) POST /cancel?gig=ID&act=NAME                         [cancel]  option 4, returns the emails of affected customers
+    (4) GET  /report/5, /report/6, /report/7, /report/8      [report]  option 5 to 8, streamed while the rows are fetched
+    (5) GET  /report/6?limit=N&after=TOKEN (also 7 and 8)    [report]  a page of N rows of option 6 to 8, with the token of the next page in the header Next-Page
+    (6) GET  /metrics                                        [-]       GigMetrics, the line-up cache, and the replica router, in the Prometheus text format
+    Reports run on a read-only replica if -Dgigsystem.replicaUrl is given (a JDBC URL, e.g. of a hot standby), as long as it is fresh enough (see ReplicaRouter).
+    Usage: java GigServer [port] [connections]*/
+public class GigServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final GigService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Semaphore> limits = new HashMap<>();
+    private final long timeoutMillis;
+
+    // The default limits for a pool of the given amount of connections: reports get a fifth of them, and bookings at least half.
+    public static Map<String, Integer> defaultLimits(int connections){
+        Map<String, Integer> limits = new HashMap<>();
+        limits.put("lineup", Math.max(1, connections / 5));
+        limits.put("booking", Math.max(1, connections / 2));
+        limits.put("cancel", Math.max(1, connections / 10));
+        limits.put("report", Math.max(1, connections / 5));
+        return limits;
+    }
+
+    public GigServer(GigService service, InetSocketAddress address, Map<String, Integer> limits, long timeoutMillis) throws IOException{
+        this.service = service;
+        this.timeoutMillis = timeoutMillis;
+        for(Map.Entry<String, Integer> limit : limits.entrySet()){
+            this.limits.put(limit.getKey(), new Semaphore(limit.getValue(), true));
+        }
+        this.executor = newRequestExecutor();
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/lineup", exchange -> handle(exchange, "GET", "lineup", this::lineUp));
+        server.createContext("/book", exchange -> handle(exchange, "POST", "booking", this::book));
+        server.createContext("/cancel", exchange -> handle(exchange, "POST", "cancel", this::cancel));
+        server.createContext("/report/", exchange -> handle(exchange, "GET", "report", this::report));
+        server.createContext("/metrics", exchange -> handle(exchange, "GET", "metrics", this::metrics));
+    }
+
+    public void start(){
+        server.start();
+    }
+
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    /* A virtual thread per request needs Java 21 (Executors.newVirtualThreadPerTaskExecutor), which is looked up at runtime so that the server
+        still compiles and runs on an older JDK, with a cached pool of platform threads instead.*/
+    private static ExecutorService newRequestExecutor(){
+        try{
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch(ReflectiveOperationException e){
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // A request handler, given the query parameters. It writes its rows to the response, or throws IllegalArgumentException for a bad request.
+    @FunctionalInterface
+    private interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, String method, String operation, Handler handler) throws IOException{
+        try{
+            if(!exchange.getRequestMethod().equals(method)){
+                reply(exchange, 405, method + " only\n");
+                return;
+            }
+            Semaphore limit = limits.get(operation);
+            boolean acquired = false;
+            try{
+                acquired = limit == null || limit.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            if(!acquired){
+                reply(exchange, 503, "Too many " + operation + " requests\n");
+                return;
+            }
+            try{
+                handler.handle(exchange, parameters(exchange));
+            }catch(IllegalArgumentException e){
+                reply(exchange, 400, e.getMessage() + "\n");
+            }finally{
+                if(limit != null){
+                    limit.release();
+                }
+            }
+        }catch(UncheckedIOException e){
+            // The client is gone while its rows are written.
+        }finally{
+            exchange.close();
+        }
+    }
+
+    /* [Option 1 Gig Line-Up] */
+    private void lineUp(HttpExchange exchange, Map<String, String> parameters) throws IOException{
+        replyRows(exchange, service.option1(intParameter(parameters, "gig")));
+    }
+
+    /* [Option 3: Booking a Ticket] */
+    private void book(HttpExchange exchange, Map<String, String> parameters) throws IOException{
+        String[] outcome = service.option3Batch(new int[]{intParameter(parameters, "gig")}, new String[]{parameter(parameters, "name")},
+            new String[]{parameter(parameters, "email")}, new String[]{parameters.getOrDefault("type", "A")});
+        if(outcome == null){
+            reply(exchange, 500, "Booking failed\n");
+            return;
+        }
+        reply(exchange, 200, outcome[0] + "\n");
+    }
+
+    /* [Option 4: Cancelling an Act] */
+    private void cancel(HttpExchange exchange, Map<String, String> parameters) throws IOException{
+        String[] emails = service.option4(intParameter(parameters, "gig"), parameter(parameters, "act"));
+        if(emails == null){
+            reply(exchange, 500, "Cancellation failed\n");
+            return;
+        }
+        StringBuilder body = new StringBuilder();
+        for(String email : emails){
+            body.append(email).append('\n');
+        }
+        reply(exchange, 200, body.toString());
+    }
+
+    /* [Option 5 - 8]: The rows are written to the response (chunked) while they are fetched, so a big report is never held in memory.*/
+    private void report(HttpExchange exchange, Map<String, String> parameters) throws IOException{
+        String option = exchange.getRequestURI().getPath().substring("/report/".length());
+        if(!option.matches("[5-8]")){
+            throw new IllegalArgumentException("No report " + option);
+        }
+        if(parameters.containsKey("limit")){
+            reportPage(exchange, option, intParameter(parameters, "limit"), parameters.get("after"));
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = exchange.getResponseBody();
+        RowVisitor writer = row -> {
+            writeRow(body, row);
+            return true;
+        };
+        int rows;
+        switch(option){
+            case "5": rows = service.option5(writer); break;
+            case "6": rows = service.option6(writer); break;
+            case "7": rows = service.option7(writer); break;
+            default: rows = service.option8(writer); break;
+        }
+        if(rows < 0){
+            // The status is already sent, so the error is the last line.
+            body.write("ERROR\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /* [Option 6 - 8 (Paged)]: The page is read as a whole (it is at most limit rows), so a bad token is still refused with 400.*/
+    private void reportPage(HttpExchange exchange, String option, int limit, String after) throws IOException{
+        ReportPage page;
+        switch(option){
+            case "6": page = service.option6Page(after, limit); break;
+            case "7": page = service.option7Page(after, limit); break;
+            case "8": page = service.option8Page(after, limit); break;
+            default: throw new IllegalArgumentException("No pages of report " + option);
+        }
+        if(page == null){
+            reply(exchange, 500, "Report failed\n");
+            return;
+        }
+        if(page.hasNext()){
+            exchange.getResponseHeaders().set("Next-Page", page.getNextToken());
+        }
+        replyRows(exchange, page.getRows());
+    }
+
+    // The metrics are read without a connection, so they have no limit and can still be scraped while the pool is exhausted.
+    private void metrics(HttpExchange exchange, Map<String, String> parameters) throws IOException{
+        StringBuilder body = new StringBuilder(GigMetrics.prometheus());
+        LineUpCache cache = service.getLineUpCache();
+        body.append("# TYPE gigsystem_lineup_cache_total counter\n");
+        body.append("gigsystem_lineup_cache_total{event=\"hit\"} ").append(cache.getHits()).append('\n');
+        body.append("gigsystem_lineup_cache_total{event=\"miss\"} ").append(cache.getMisses()).append('\n');
+        body.append("gigsystem_lineup_cache_total{event=\"eviction\"} ").append(cache.getEvictions()).append('\n');
+        body.append("gigsystem_lineup_cache_total{event=\"invalidation\"} ").append(cache.getInvalidations()).append('\n');
+        body.append("# TYPE gigsystem_lineup_cache_size gauge\n");
+        body.append("gigsystem_lineup_cache_size ").append(cache.size()).append('\n');
+        ReplicaRouter router = GigSystem.getReplicaRouter();
+        if(router != null){
+            body.append("# TYPE gigsystem_replica_reports_total counter\n");
+            body.append("gigsystem_replica_reports_total{event=\"routed\"} ").append(router.getRouted()).append('\n');
+            body.append("gigsystem_replica_reports_total{event=\"stale\"} ").append(router.getStale()).append('\n');
+            body.append("gigsystem_replica_reports_total{event=\"failure\"} ").append(router.getFailures()).append('\n');
+            body.append("# TYPE gigsystem_replica_lag_seconds gauge\n");
+            body.append("gigsystem_replica_lag_seconds ").append(router.getLagMillis() / 1000).append('\n');
+        }
+        reply(exchange, 200, body.toString());
+    }
+
+    private static void writeRow(OutputStream body, ResultSet row) throws SQLException{
+        int columns = row.getMetaData().getColumnCount();
+        StringBuilder line = new StringBuilder();
+        for(int i = 1; i <= columns; i++){
+            if(i > 1){
+                line.append('\t');
+            }
+            line.append(row.getString(i));
+        }
+        line.append('\n');
+        try{
+            body.write(line.toString().getBytes(StandardCharsets.UTF_8));
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void replyRows(HttpExchange exchange, String[][] rows) throws IOException{
+        StringBuilder body = new StringBuilder();
+        if(rows != null){
+            for(String[] row : rows){
+                body.append(String.join("\t", row)).append('\n');
+            }
+        }
+        reply(exchange, 200, body.toString());
+    }
+
+    private static void reply(HttpExchange exchange, int status, String body) throws IOException{
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if(bytes.length > 0){
+            try(OutputStream out = exchange.getResponseBody()){
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange){
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query != null){
+            for(String pair : query.split("&")){
+                int equals = pair.indexOf('=');
+                if(equals > 0){
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static String parameter(Map<String, String> parameters, String name){
+        String value = parameters.get(name);
+        if(value == null || value.isEmpty()){
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name){
+        try{
+            return Integer.parseInt(parameter(parameters, name));
+        }catch(NumberFormatException e){
+            throw new IllegalArgumentException("Parameter " + name + " must be a number");
+        }
+    }
+
+    // Stops accepting requests, waits (at most a second) for the running ones, and closes the service.
+    @Override
+    public void close(){
+        server.stop(1);
+        executor.shutdown();
+        service.close();
+    }
+
+    public static void main(String[] args) throws IOException{
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : GigService.DEFAULT_MAX_CONNECTIONS;
+        Callable<Connection> factory = GigSystem::getPortConnection;
+        GigService service = new GigService(factory, connections, GigService.DEFAULT_TIMEOUT_MILLIS);
+        String replicaUrl = System.getProperty("gigsystem.replicaUrl");
+        if(replicaUrl != null){
+            ReplicaRouter router = new ReplicaRouter(() -> DriverManager.getConnection(replicaUrl), defaultLimits(connections).get("report"));
+            router.heartbeat(factory);
+            GigSystem.setReplicaRouter(router);
+            Runtime.getRuntime().addShutdownHook(new Thread(router::close));
+        }
+        GigServer server = new GigServer(service, new InetSocketAddress("localhost", port), defaultLimits(connections), DEFAULT_TIMEOUT_MILLIS);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        server.start();
+        System.out.println("GigServer listening on http://localhost:" + server.getPort());
+    }
+}
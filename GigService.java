@@ -0,0 +1,257 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+/* GigService is a thread-safe entry to all options for many concurrent callers. It owns a bounded ConnectionPool, and each call
+    borrows a connection, runs the static option of GigSystem on it, and gives it back. As the prepared statements of GigSystem are
+    cached per connection, a pooled connection reuses its statements across calls.
+    The static options of GigSystem still work on a caller-supplied connection.
+    Line-ups (option 1) are served from a LineUpCache, which listens on its own connection for line-ups changed by other writers. */
+public class GigService implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 10;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    private final ConnectionPool pool;
+    private final LineUpCache lineUpCache;
+
+    public GigService(Callable<Connection> factory, int maxConnections, long timeoutMillis, LineUpCache lineUpCache){
+        this.pool = new ConnectionPool(factory, maxConnections, timeoutMillis);
+        this.lineUpCache = lineUpCache;
+        lineUpCache.listen(factory);
+    }
+
+    public GigService(Callable<Connection> factory, int maxConnections, long timeoutMillis){
+        this(factory, maxConnections, timeoutMillis, new LineUpCache());
+    }
+
+    public GigService(Callable<Connection> factory){
+        this(factory, DEFAULT_MAX_CONNECTIONS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public ConnectionPool getPool(){
+        return pool;
+    }
+
+    public LineUpCache getLineUpCache(){
+        return lineUpCache;
+    }
+
+    /* [Option 1 Gig Line-Up]: A connection is only borrowed if the line-up is not cached. */
+    public String[][] option1(int gigID){
+        GigMetrics.Timer timer = GigMetrics.begin("option1");
+        try{
+            return lineUpCache.get(gigID, this::readLineUp);
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+        return null;
+    }
+
+    private String[][] readLineUp(int gigID) throws SQLException{
+        Connection conn = pool.borrow();
+        try{
+            return GigSystem.readLineUp(conn, gigID);
+        }finally{
+            pool.release(conn);
+        }
+    }
+
+    /* [Option 2: Organising a Gig] */
+    public void option2(String venue, String gigTitle, int[] actIDs, int[] fees, LocalDateTime[] onTimes, int[] durations, int adultTicketPrice){
+        withConnection(conn -> {
+            GigSystem.option2(conn, venue, gigTitle, actIDs, fees, onTimes, durations, adultTicketPrice);
+            return null;
+        });
+    }
+
+    /* [Option 2 (Batch): Organising Gigs] */
+    public int[] option2Batch(String[] venues, String[] gigTitles, int[][] actIDs, int[][] fees, LocalDateTime[][] onTimes, int[][] durations, int[] adultTicketPrices){
+        return withConnection(conn -> GigSystem.option2Batch(conn, venues, gigTitles, actIDs, fees, onTimes, durations, adultTicketPrices));
+    }
+
+    /* [Option 3: Booking a Ticket] */
+    public void option3(int gigid, String name, String email, String ticketType){
+        withConnection(conn -> {
+            GigSystem.option3(conn, gigid, name, email, ticketType);
+            return null;
+        });
+    }
+
+    /* [Option 3 (Batch): Booking Tickets] */
+    public String[] option3Batch(int[] gigids, String[] names, String[] emails, String[] ticketTypes){
+        return withConnection(conn -> GigSystem.option3Batch(conn, gigids, names, emails, ticketTypes));
+    }
+
+    /* [Option 4: Cancelling an Act] */
+    public String[] option4(int gigID, String actName){
+        return withConnection(conn -> GigSystem.option4(conn, gigID, actName));
+    }
+
+    /* [Option 4 (Batch): Cancelling Acts] */
+    public String[][] option4Batch(int[] gigIDs, String[] actNames){
+        return withConnection(conn -> GigSystem.option4Batch(conn, gigIDs, actNames));
+    }
+
+    /* [Option 4 (Batch): Cancelling Gigs] */
+    public String[][] cancelGigs(int[] gigIDs){
+        return withConnection(conn -> GigSystem.cancelGigs(conn, gigIDs));
+    }
+
+    /* [Option 4 (Batch): Cancelling Gigs of a Venue] */
+    public String[][] cancelVenueGigs(String venue, LocalDateTime from, LocalDateTime to){
+        return withConnection(conn -> GigSystem.cancelVenueGigs(conn, venue, from, to));
+    }
+
+    /* [Option 5: Tickets Needed to Sell] */
+    public String[][] option5(){
+        return withConnection(GigSystem::option5);
+    }
+
+    /* [Option 5: Tickets Needed to Sell (Streaming)] */
+    public int option5(RowVisitor visitor){
+        return rowsVisited(withConnection(conn -> GigSystem.option5(conn, visitor)));
+    }
+
+    /* [Option 6: How Many Tickets Sold] */
+    public String[][] option6(){
+        return withConnection(GigSystem::option6);
+    }
+
+    /* [Option 6: How Many Tickets Sold (Streaming)] */
+    public int option6(RowVisitor visitor){
+        return rowsVisited(withConnection(conn -> GigSystem.option6(conn, visitor)));
+    }
+
+    /* [Option 7 Regular Customers] */
+    public String[][] option7(){
+        return withConnection(GigSystem::option7);
+    }
+
+    /* [Option 7 Regular Customers (Streaming)] */
+    public int option7(RowVisitor visitor){
+        return rowsVisited(withConnection(conn -> GigSystem.option7(conn, visitor)));
+    }
+
+    /* [Option 8: Economically Feasible Gigs] */
+    public String[][] option8(){
+        return withConnection(GigSystem::option8);
+    }
+
+    /* [Option 8: Economically Feasible Gigs (Streaming)] */
+    public int option8(RowVisitor visitor){
+        return rowsVisited(withConnection(conn -> GigSystem.option8(conn, visitor)));
+    }
+
+    /* [Option 8 (Top K)] */
+    public String[][] option8(int topK){
+        return withConnection(conn -> GigSystem.option8(conn, topK));
+    }
+
+    /* [Option 8 (Top K, Streaming)] */
+    public int option8(int topK, RowVisitor visitor){
+        return rowsVisited(withConnection(conn -> GigSystem.option8(conn, topK, visitor)));
+    }
+
+    /* [Option 6 (Paged)] */
+    public ReportPage option6Page(String token, int pageSize){
+        return withConnection(conn -> GigSystem.option6Page(conn, token, pageSize));
+    }
+
+    /* [Option 7 (Paged)] */
+    public ReportPage option7Page(String token, int pageSize){
+        return withConnection(conn -> GigSystem.option7Page(conn, token, pageSize));
+    }
+
+    /* [Option 8 (Paged)] */
+    public ReportPage option8Page(String token, int pageSize){
+        return withConnection(conn -> GigSystem.option8Page(conn, token, pageSize));
+    }
+
+    /* [Option 8 (Top K, Paged)] */
+    public ReportPage option8Page(int topK, String token, int pageSize){
+        return withConnection(conn -> GigSystem.option8Page(conn, topK, token, pageSize));
+    }
+
+    /* [Bulk Import: Tickets] */
+    public String[][] importTickets(Reader csv, boolean header){
+        return withConnection(conn -> TicketTransfer.importTickets(conn, csv, header));
+    }
+
+    /* [Bulk Import: Line-Ups] */
+    public String[][] importActGigs(Reader csv, boolean header){
+        return withConnection(conn -> TicketTransfer.importActGigs(conn, csv, header));
+    }
+
+    /* [Bulk Export: Tickets] */
+    public long exportTickets(Writer csv){
+        return rowsWritten(withConnection(conn -> TicketTransfer.exportTickets(conn, csv)));
+    }
+
+    /* [Bulk Export: Line-Ups] */
+    public long exportActGigs(Writer csv){
+        return rowsWritten(withConnection(conn -> TicketTransfer.exportActGigs(conn, csv)));
+    }
+
+    /* [Bulk Export: Gigs] */
+    public long exportGigs(Writer csv){
+        return rowsWritten(withConnection(conn -> TicketTransfer.exportGigs(conn, csv)));
+    }
+
+    /* [Storage Maintenance] */
+    public void maintainStorage(){
+        withConnection(conn -> {
+            GigSystem.maintainStorage(conn);
+            return null;
+        });
+    }
+
+    public void maintainCheck(){
+        withConnection(conn -> {
+            GigSystem.maintainCheck(conn);
+            return null;
+        });
+    }
+
+    // This method runs a task on a pooled connection and always gives the connection back. It returns null if no connection is available.
+    private <T> T withConnection(Function<Connection, T> task){
+        Connection conn;
+        try{
+            conn = pool.borrow();
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+        try{
+            return task.apply(conn);
+        }finally{
+            pool.release(conn);
+        }
+    }
+
+    // The amount of rows visited by a streaming option, or -1 if no connection is available.
+    private static int rowsVisited(Integer rows){
+        return rows == null ? -1 : rows;
+    }
+
+    // The amount of rows written by an export, or -1 if no connection is available.
+    private static long rowsWritten(Long rows){
+        return rows == null ? -1 : rows;
+    }
+
+    @Override
+    public void close(){
+        lineUpCache.close();
+        pool.close();
+    }
+}
@@ -11,138 +11,239 @@ import java.util.Properties;
 
 import java.time.LocalDateTime;
 import java.sql.Timestamp;
-import java.util.Vector;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GigSystem {
 
+    /* Criteria check mode used by maintainCheck:
+        [FALSE] (default): incremental check, only gigs touched since the last check are checked again.
+        [TRUE]: full sweep over all gigs which are not cancelled, e.g. for audits. It can also be set with -Dgigsystem.fullCheck=true.
+    Read-only options (1, 5, 6, 7, and 8) do not change any gig and therefore skip the check entirely. */
+    private static volatile boolean fullCheck = Boolean.getBoolean("gigsystem.fullCheck");
+
+    public static void setFullCheck(boolean full){
+        fullCheck = full;
+    }
+
+    public static boolean isFullCheck(){
+        return fullCheck;
+    }
+
+    /* Line-ups of option 1 are served from this cache if it is set (null by default). Every LineUpCache drops a gig when option 2 or 4 changes it.*/
+    private static volatile LineUpCache lineUpCache = null;
+
+    public static void setLineUpCache(LineUpCache cache){
+        lineUpCache = cache;
+    }
+
+    public static LineUpCache getLineUpCache(){
+        return lineUpCache;
+    }
+
+    /* Reports (option 5 to 8) run on a replica of this router if it is set (null by default) and the replica is fresh enough, and on the given
+        connection otherwise. See streamReport.*/
+    private static volatile ReplicaRouter replicaRouter = null;
+
+    public static void setReplicaRouter(ReplicaRouter router){
+        replicaRouter = router;
+    }
+
+    public static ReplicaRouter getReplicaRouter(){
+        return replicaRouter;
+    }
+
     /* [Option 1 Gig Line-Up]: This option is to find the act, its ontime, and its offtime given by a gig ID. */
     public static String[][] option1(Connection conn, int gigID){
+        GigMetrics.Timer timer = GigMetrics.begin("option1");
         try{
-            maintainCheck(conn);
-
-            String selectActs = "SELECT actname, ontime, offtime FROM option1 WHERE gigID = ? ORDER BY ontime";
-            PreparedStatement searchActs = conn.prepareStatement(selectActs);
-            
-            // SQL query: SELECT actname, ontime, offtime FROM option1 WHERE gigID = gig_id ORDER BY ontime.
-            searchActs.setInt(1, gigID);
-            ResultSet getActs = searchActs.executeQuery();
-            
-            // SQL result: Act Name, on Time, off Time.
-            String acts[][] = convertResultToStrings(getActs);
-
-            maintainCheck(conn);
-            searchActs.close();
-            getActs.close();
-            return acts;
+            LineUpCache cache = lineUpCache;
+            return cache == null ? readLineUp(conn, gigID) : cache.get(gigID, id -> readLineUp(conn, id));
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
             e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
         }
         return null;
     }
 
+    // This method reads the line-up of a gig from the database (VIEW option1), or returns null if the gig has no act.
+    static String[][] readLineUp(Connection conn, int gigID) throws SQLException{
+        String selectActs = "SELECT actname, ontime, offtime FROM option1 WHERE gigID = ? ORDER BY ontime";
+        PreparedStatement searchActs = prepare(conn, selectActs);
+
+        // SQL query: SELECT actname, ontime, offtime FROM option1 WHERE gigID = gig_id ORDER BY ontime.
+        searchActs.setInt(1, gigID);
+        ResultSet getActs = searchActs.executeQuery();
+
+        // SQL result: Act Name, on Time, off Time.
+        String acts[][] = convertResultToStrings(getActs);
+
+        getActs.close();
+        return acts;
+    }
+
     /* [Option 2: Organising a Gig]: This option is to create a new gig and then check whether it follows the criteria (rollback if not).*/
     public static void option2(Connection conn, String venue, String gigTitle, int[] actIDs, int[] fees, LocalDateTime[] onTimes, int[] durations, int adultTicketPrice){
+        // A line-up which breaks the criteria is rejected before anything is sent to the database (see LineUpValidator).
+        String violation = LineUpValidator.firstViolation(onTimes, durations);
+        if(violation != null){
+            System.err.format("GIG %s: %s\n", gigTitle, violation);
+            GigMetrics.outcome("option2", "REJECTED");
+            return;
+        }
+        GigMetrics.Timer timer = GigMetrics.begin("option2");
         try{
-            maintainCheck(conn);
-
             // Turn off auto commit to roll back if criteria of inserted gig is found improper.
             conn.setAutoCommit(false);
 
-            // Create savepoint in the beginning so that the potential rollback can go back to the beginning state.
-            Savepoint savepoint = conn.setSavepoint();
-
-            // Set up gig first with venue, gig title, and gig date.
-            // SQL parameter: FUNCTION setupGig(venue_name VARCHAR(100), gig_title VARCHAR(100), on_time TIMESTAMP).
-            PreparedStatement setupGig = conn.prepareStatement("SELECT setupGig(?, ?, ?)");
-            setupGig.setString(1, venue);
-            setupGig.setString(2, gigTitle);
-            // "Timestamp.valueOf(LocalDateTimes)" changes a LocalDateTimes type data into a Timestamp type data.
-            // According to instruction, gigdate is set to onTimes[0].
-            setupGig.setTimestamp(3, Timestamp.valueOf(onTimes[0]));
-            // SQL result: gigID.
-            ResultSet getGigID = setupGig.executeQuery();
-            // Retrieve the gigID (serial) along with setting up a gig.
-            int gigID = 0;
-            while(getGigID.next()){gigID = getGigID.getInt(1);}
-
-            // Set up gig_ticket second.
-            PreparedStatement insertGigTicket = conn.prepareStatement("CALL insertGigTicket(?, ?, ?)");
-            insertGigTicket.setInt(1, gigID);
-            // The inserted ticket pricetype is "A" (Adult ticket).
-            insertGigTicket.setString(2, "A");
-            insertGigTicket.setInt(3, adultTicketPrice);
-            // No need to retrieve any data so "execute" is sufficient.
-            insertGigTicket.execute();
-
-            // Set up act_gig at last.
-            // SQL parameter: PROCEDURE insertActGig(act_id INTEGER, gig_id INTEGER, act_fee INTEGER, on_time TIMESTAMP, act_duration INTEGER).
-            PreparedStatement insertActGig = conn.prepareStatement("CALL insertActGig(?, ?, ?, ?, ?)");
-            // This for loop loops over all act's performance information.
-            for(int x = 0; x < actIDs.length; x++){
-                insertActGig.setInt(1, actIDs[x]);
-                insertActGig.setInt(2, gigID);
-                insertActGig.setInt(3, fees[x]);
-                // "Timestamp.valueOf(LocalDateTimes)" changes a LocalDateTimes type data into a Timestamp type data.
-                insertActGig.setTimestamp(4, Timestamp.valueOf(onTimes[x]));
-                insertActGig.setInt(5, durations[x]);
-                insertActGig.execute();
+            int gigID = createGig(conn, venue, gigTitle, actIDs, fees, onTimes, durations, adultTicketPrice);
+            timer.outcome(gigID != 0 ? "CREATED" : "REJECTED");
+
+            // Commit to proceed and set AutoCommit back to TRUE;
+            conn.commit();
+            conn.setAutoCommit(true);
+            // A line-up (even "no act") of this gigID may be cached before the gig is created.
+            if(gigID != 0){
+                LineUpCache.invalidateGig(gigID);
             }
 
-            /* Why having setupGig, insertGigTicket, and insertActGig as 3 seperate parts:
-            (1) Encapsulation: creating seperate functions or procedures in schema.sql improve its modularity.
-            (2) Runtime: gig's and gig ticket's information needs inserting only once, but act's performance needs multiple.
-            */
-            
-            /* Check whether the inserted gig follow the criteria including:
-            (1) TIME CONFLICT: act's performance overlaps or act starts before the gig date.
-            (2) TIME INTERVAL TOO LONG: act's performance gap is larger than 20 minutes or the first act starts 20 minutes later than the gig date.
-            (3) ACT OVERTIME: an act plays longer than 2 hours.
-            (4) DATE CROSSED: acts in a given gig plays on different date (which means crossing the midnight).
-            (5) VENUE OVERLOAD: the ticket sold is greater than the venue capacity.
+            maintainCheck(conn, gigID);
 
-            Return [TRUE] if criteria is not followed, and therefore the database rollbacks to the initial save point.
-            For details, please turn to FUNCTION checkCriteria(gig_id INTEGER) in schema.sql;
-            */
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+            resetTransaction(conn);
+        }finally{
+            timer.close();
+        }
+    }
 
-            // Checking process.
-            PreparedStatement checkCriteria = conn.prepareStatement("SELECT * FROM checkCriteria(?)");
-            checkCriteria.setInt(1, gigID);
-            ResultSet getGigStatus = checkCriteria.executeQuery();
+    /* [Option 2 (Batch): Organising Gigs]: This option is to create many gigs (e.g. a season's schedule) in one transaction, the x-th gig is made of
+        the x-th element of each array. Each gig is still checked on its own, so a gig which breaks the criteria is rolled back without affecting others.
+        It returns the serial ID of each gig in the same order, or 0 if the gig is rolled back.*/
+    public static int[] option2Batch(Connection conn, String[] venues, String[] gigTitles, int[][] actIDs, int[][] fees, LocalDateTime[][] onTimes, int[][] durations, int[] adultTicketPrices){
+        GigMetrics.Timer timer = GigMetrics.begin("option2Batch");
+        try{
+            conn.setAutoCommit(false);
 
-            // Retrieve gigStatus by checking criteria of current gig.
-            boolean gigStatus = false;
-            while(getGigStatus.next()){gigStatus = getGigStatus.getBoolean(1);}
-            
-            // gigStatus is true if criteria is break; return false otherwise.
-            if(gigStatus){
-                conn.rollback(savepoint);
+            int gigIDs[] = new int[venues.length];
+            for(int x = 0; x < venues.length; x++){
+                // A line-up which breaks the criteria is not sent to the database (see LineUpValidator).
+                String violation = LineUpValidator.firstViolation(onTimes[x], durations[x]);
+                if(violation != null){
+                    System.err.format("GIG %s: %s\n", gigTitles[x], violation);
+                    timer.outcome("REJECTED");
+                    continue;
+                }
+                gigIDs[x] = createGig(conn, venues[x], gigTitles[x], actIDs[x], fees[x], onTimes[x], durations[x], adultTicketPrices[x]);
+                timer.outcome(gigIDs[x] != 0 ? "CREATED" : "REJECTED");
             }
-            
-            // Commit to proceed and set AutoCommit back to TRUE;
+
             conn.commit();
             conn.setAutoCommit(true);
+            for(int gigID : gigIDs){
+                if(gigID != 0){
+                    LineUpCache.invalidateGig(gigID);
+                }
+            }
+
+            maintainCheck(conn, gigIDs);
+            return gigIDs;
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+            resetTransaction(conn);
+        }finally{
+            timer.close();
+        }
+        return null;
+    }
+
+    /* This method creates a gig inside the current transaction and rolls it back to its own savepoint if it breaks the criteria.
+        It returns the gig's serial ID, or 0 if the gig is rolled back.*/
+    private static int createGig(Connection conn, String venue, String gigTitle, int[] actIDs, int[] fees, LocalDateTime[] onTimes, int[] durations, int adultTicketPrice) throws SQLException{
+        // Create savepoint in the beginning so that the potential rollback can go back to the beginning state (of this gig only).
+        Savepoint savepoint = conn.setSavepoint();
+
+        // "createArrayOf" needs objects, so the act's performance information is boxed first.
+        // "Timestamp.valueOf(LocalDateTimes)" changes a LocalDateTimes type data into a Timestamp type data.
+        Integer[] boxedActIDs = new Integer[actIDs.length];
+        Integer[] boxedFees = new Integer[actIDs.length];
+        Timestamp[] timestamps = new Timestamp[actIDs.length];
+        Integer[] boxedDurations = new Integer[actIDs.length];
+        for(int x = 0; x < actIDs.length; x++){
+            boxedActIDs[x] = actIDs[x];
+            boxedFees[x] = fees[x];
+            timestamps[x] = Timestamp.valueOf(onTimes[x]);
+            boxedDurations[x] = durations[x];
+        }
+
+        // Set up gig, gig_ticket, and the whole act_gig line-up in one round trip, and check the criteria of the new gig in the same statement.
+        // SQL parameter: FUNCTION createGig(venue_name VARCHAR(100), gig_title VARCHAR(100), adult_ticket_price INTEGER, act_ids INTEGER[], act_fees INTEGER[], on_times TIMESTAMP[], act_durations INTEGER[]).
+        PreparedStatement createGig = prepare(conn, "SELECT gig_id, checkCriteria(gig_id) FROM createGig(?, ?, ?, ?, ?, ?, ?) AS gig_id");
+        createGig.setString(1, venue);
+        createGig.setString(2, gigTitle);
+        createGig.setInt(3, adultTicketPrice);
+        createGig.setArray(4, conn.createArrayOf("integer", boxedActIDs));
+        createGig.setArray(5, conn.createArrayOf("integer", boxedFees));
+        createGig.setArray(6, conn.createArrayOf("timestamp", timestamps));
+        createGig.setArray(7, conn.createArrayOf("integer", boxedDurations));
 
-            setupGig.close();
-            getGigID.close();
-            insertGigTicket.close();
-            insertActGig.close();
-            checkCriteria.close();
-            getGigStatus.close();
+        /* Check whether the inserted gig follow the criteria including:
+        (1) TIME CONFLICT: act's performance overlaps or act starts before the gig date.
+        (2) TIME INTERVAL TOO LONG: act's performance gap is larger than 20 minutes or the first act starts 20 minutes later than the gig date.
+        (3) ACT OVERTIME: an act plays longer than 2 hours.
+        (4) DATE CROSSED: acts in a given gig plays on different date (which means crossing the midnight).
+        (5) VENUE OVERLOAD: the ticket sold is greater than the venue capacity.
 
-            maintainCheck(conn);
+        Return [TRUE] if criteria is not followed, and therefore the database rollbacks to the save point of this gig.
+        For details, please turn to FUNCTION checkCriteria(gig_id INTEGER) in schema.sql;
+        */
+
+        // SQL result: gigID, gigStatus.
+        int gigID = 0;
+        boolean gigStatus = false;
+        ResultSet getGigStatus = createGig.executeQuery();
+        while(getGigStatus.next()){
+            gigID = getGigStatus.getInt(1);
+            gigStatus = getGigStatus.getBoolean(2);
+        }
+        getGigStatus.close();
 
+        // gigStatus is true if criteria is break; return false otherwise.
+        if(gigStatus){
+            conn.rollback(savepoint);
+            return 0;
+        }
+        conn.releaseSavepoint(savepoint);
+        return gigID;
+    }
+
+    // This method rolls back a transaction which is interrupted by an error, so the connection can be used again with AutoCommit.
+    private static void resetTransaction(Connection conn){
+        try{
+            if(!conn.getAutoCommit()){
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
-            e.printStackTrace();
         }
     }
 
     /* [Option 3: Booking a Ticket]: This option is to insert a new ticket information into TABLE ticket.*/
     public static void option3(Connection conn, int gigid, String name, String email, String ticketType){
+        GigMetrics.Timer timer = GigMetrics.begin("option3");
         try{
-            maintainCheck(conn);
+            maintainCheck(conn, gigid);
 
             // SQL parameter: PROCEDURE insertTicket(gig_id INTEGER, price_type VARCHAR(2), customer_name VARCHAR(100), customer_email VARCHAR(100)).
             /* There are some criteria needs checking before purchase: 
@@ -151,102 +252,219 @@ public class GigSystem {
             (3)NO AVAILABLE SEAT: the current amount of ticket sold is greater or equal to the venue capacity.
             Please turn to PROCEDURE insertTicket in schema.sql for details. 
             */
-            PreparedStatement insertTicket = conn.prepareStatement("CALL insertTicket(?, ?, ?, ?)");
+            PreparedStatement insertTicket = prepare(conn, "CALL insertTicket(?, ?, ?, ?)");
             insertTicket.setInt(1, gigid);
             insertTicket.setString(2, ticketType);
             insertTicket.setString(3, name);
             insertTicket.setString(4, email);
 
             insertTicket.execute();
-            insertTicket.close();
 
-            maintainCheck(conn);
+            maintainCheck(conn, gigid);
+
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+    }
+
+    /* [Option 3 (Batch): Booking Tickets]: This option is to book many tickets in one round trip, the x-th ticket is made of the x-th element of each array.
+        It returns the outcome of each ticket in the same order: BOOKED, GIG NOT FOUND, PRICETYPE NOT FOUND, or NO AVAILABLE SEAT.*/
+    public static String[] option3Batch(Connection conn, int[] gigids, String[] names, String[] emails, String[] ticketTypes){
+        GigMetrics.Timer timer = GigMetrics.begin("option3Batch");
+        try{
+            maintainCheck(conn, gigids);
+
+            // SQL parameter: FUNCTION bookTickets(gig_ids INTEGER[], price_types VARCHAR(2)[], customer_names VARCHAR(100)[], customer_emails VARCHAR(100)[]).
+            /* Each ticket is booked by FUNCTION bookTicket, which checks the same criteria as option3, but returns it as an outcome instead of a notice.
+            The amount of ticket sold is read from TABLE gig_seat (locked until commit), so that concurrent bookings never oversell a gig.
+            Please turn to FUNCTION bookTicket in schema.sql for details.
+            */
+            PreparedStatement bookTickets = prepare(conn, "SELECT * FROM bookTickets(?, ?, ?, ?)");
+            bookTickets.setArray(1, conn.createArrayOf("integer", boxGigIDs(gigids)));
+            bookTickets.setArray(2, conn.createArrayOf("varchar", ticketTypes));
+            bookTickets.setArray(3, conn.createArrayOf("varchar", names));
+            bookTickets.setArray(4, conn.createArrayOf("varchar", emails));
+
+            // SQL result: outcome (in the same order as the tickets given).
+            String outcomes[] = new String[gigids.length];
+            int counter = 0;
+            ResultSet getOutcomes = bookTickets.executeQuery();
+            while(getOutcomes.next()){
+                outcomes[counter] = getOutcomes.getString(1);
+                timer.outcome(outcomes[counter]);
+                counter ++;
+            }
+            getOutcomes.close();
 
+            maintainCheck(conn, gigids);
+            return outcomes;
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
             e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
         }
+        return null;
     }
 
     /* [Option 4: Cancelling an Act]: This option is to cancal a certain act from a specified gig
         and then check whether it follows the criteria (cancal the entire gig if not).*/
     public static String[] option4(Connection conn, int gigID, String actName){
+        GigMetrics.Timer timer = GigMetrics.begin("option4");
         try{
-            maintainCheck(conn);
+            maintainCheck(conn, gigID);
 
-            // SQL parameter: removeActfromGig(gig_id INTEGER, act_name VARCHAR(100)
-            PreparedStatement removeActfromGig = conn.prepareStatement("SELECT * FROM removeActfromGig(?, ?)");
-            removeActfromGig.setInt(1, gigID);
-            removeActfromGig.setString(2, actName);
+            // SQL parameter: FUNCTION cancelAct(gig_id INTEGER, act_name VARCHAR(100)).
+            PreparedStatement cancelAct = prepare(conn, "SELECT * FROM cancelAct(?, ?)");
+            cancelAct.setInt(1, gigID);
+            cancelAct.setString(2, actName);
 
-            /* Check whether the inserted gig follow the criteria including:
+            /* FUNCTION cancelAct removes the act by FUNCTION removeActfromGig, which checks whether the gig still follows the criteria including:
             (1) TIME CONFLICT: act's performance overlaps or act starts before the gig date.
             (2) TIME INTERVAL TOO LONG: act's performance gap is larger than 20 minutes or the first act starts 20 minutes later than the gig date.
             (3) ACT OVERTIME: an act plays longer than 2 hours.
             (4) DATE CROSSED: acts in a given gig plays on different date (which means crossing the midnight).
             (5) VENUE OVERLOAD: the ticket sold is greater than the venue capacity.
 
-            Return [TRUE] if criteria is not followed, and therefore the database rollbacks to the initial save point.
-            For details, please turn to FUNCTION checkCriteria(gig_id INTEGER) in schema.sql;
+            If criteria is not followed (or the act is the headline), the entire gig is cancelled, the cost of its tickets is set to 0,
+                and the email of each affected ticket is returned by the same UPDATE. Otherwise no row is returned.
+            For details, please turn to FUNCTION cancelAct and checkCriteria(gig_id INTEGER) in schema.sql;
             */
 
-            // Retrieve gigStatus by checking criteria of current gig.
-            Boolean gigStatus = false;
-            ResultSet getGigStatus = removeActfromGig.executeQuery();
-            while(getGigStatus.next()){gigStatus = getGigStatus.getBoolean(1);}
-
-            removeActfromGig.close();
-            getGigStatus.close();
-
-            // gigStatus is true if criteria is break; return false otherwise.
-            if(gigStatus){
-                // SQL parameter: PROCEDURE setAffectedTicket(gig_id INTEGER).
-                PreparedStatement setAffectedTicket = conn.prepareStatement("CALL setAffectedTicket(?)");
-                setAffectedTicket.setInt(1, gigID);
-                setAffectedTicket.execute();
-                setAffectedTicket.close();
-
-                // Get the amount of affected customers.
-                // VIEW VIEW_setaffectedTicket includes all customer's email of a gig. If name needed, include customer's name in the view.
-                PreparedStatement searchAmount = conn.prepareStatement("SELECT COUNT(*) FROM VIEW_setAffectedTicket");
-                ResultSet getAmount = searchAmount.executeQuery();
-                int amount = 0;
-                while(getAmount.next()){amount = getAmount.getInt(1);}
-                searchAmount.close();
-                getAmount.close();
-                
-                // Initialization of ARRAY email and INTEGER counter for later storing.
-                int counter = 0;
-                String email[] = new String[amount];
-
-                // Get the email list and then transfer it into Array email.
-                // VIEW VIEW_setaffectedTicket includes all customer's email of a gig. If name needed, include customer's name in the view.
-                PreparedStatement searchEmail = conn.prepareStatement("SELECT * FROM VIEW_setAffectedTicket");
-
-                // SQL result: email.
-                ResultSet getEmail = searchEmail.executeQuery();
-                while(getEmail.next()){
-                    email[counter] = getEmail.getString(1);
-                    counter ++;
-                }
-                searchEmail.close();
-                getEmail.close();
-                maintainCheck(conn);
-                return email;
+            // SQL result: email.
+            ArrayList<String> email = new ArrayList<>();
+            ResultSet getEmail = cancelAct.executeQuery();
+            while(getEmail.next()){
+                email.add(getEmail.getString(1));
             }
+            getEmail.close();
+            LineUpCache.invalidateGig(gigID);
+
+            maintainCheck(conn, gigID);
+            return email.toArray(new String[email.size()]);
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
             e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
         }
-        maintainCheck(conn);
+        maintainCheck(conn, gigID);
         return new String[0];
     }
 
+    /* [Option 4 (Batch): Cancelling Acts]: This option is to cancel many acts in one call, the x-th act of actNames from the x-th gig of gigIDs.
+        It returns a row (gigID, email) for every affected ticket, or null on error.*/
+    public static String[][] option4Batch(Connection conn, int[] gigIDs, String[] actNames){
+        GigMetrics.Timer timer = GigMetrics.begin("option4Batch");
+        try{
+            maintainCheck(conn, gigIDs);
+
+            // SQL parameter: FUNCTION cancelActs(gig_ids INTEGER[], act_names VARCHAR(100)[]).
+            PreparedStatement cancelActs = prepare(conn, "SELECT * FROM cancelActs(?, ?)");
+            cancelActs.setArray(1, conn.createArrayOf("integer", boxGigIDs(gigIDs)));
+            cancelActs.setArray(2, conn.createArrayOf("varchar", actNames));
+            String affected[][] = readAffectedTickets(cancelActs);
+            for(int gigID : gigIDs){
+                LineUpCache.invalidateGig(gigID);
+            }
+
+            maintainCheck(conn, gigIDs);
+            return affected;
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+        return null;
+    }
+
+    /* [Option 4 (Batch): Cancelling Gigs]: This option is to cancel whole gigs in one call. Gigs which are already cancelled are skipped.
+        It returns a row (gigID, email) for every affected ticket, or null on error.*/
+    public static String[][] cancelGigs(Connection conn, int[] gigIDs){
+        GigMetrics.Timer timer = GigMetrics.begin("cancelGigs");
+        try{
+            maintainCheck(conn, gigIDs);
+
+            // SQL parameter: FUNCTION cancelGigs(gig_ids INTEGER[]).
+            PreparedStatement cancelGigs = prepare(conn, "SELECT * FROM cancelGigs(?)");
+            cancelGigs.setArray(1, conn.createArrayOf("integer", boxGigIDs(gigIDs)));
+            String affected[][] = readAffectedTickets(cancelGigs);
+
+            maintainCheck(conn, gigIDs);
+            return affected;
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+        return null;
+    }
+
+    /* [Option 4 (Batch): Cancelling Gigs of a Venue]: This option is to cancel all gigs of a venue which start within [from, to), e.g. for a venue outage.
+        It returns a row (gigID, email) for every affected ticket, or null on error.*/
+    public static String[][] cancelVenueGigs(Connection conn, String venue, LocalDateTime from, LocalDateTime to){
+        GigMetrics.Timer timer = GigMetrics.begin("cancelVenueGigs");
+        try{
+            // SQL parameter: FUNCTION cancelVenueGigs(venue_name VARCHAR(100), from_time TIMESTAMP, to_time TIMESTAMP).
+            PreparedStatement cancelVenueGigs = prepare(conn, "SELECT * FROM cancelVenueGigs(?, ?, ?)");
+            cancelVenueGigs.setString(1, venue);
+            cancelVenueGigs.setTimestamp(2, Timestamp.valueOf(from));
+            cancelVenueGigs.setTimestamp(3, Timestamp.valueOf(to));
+            String affected[][] = readAffectedTickets(cancelVenueGigs);
+
+            // The gigs of the venue are only known by their affected tickets, as cancelled gigs are not checked anyway.
+            maintainCheck(conn, Arrays.stream(affected).mapToInt(ticket -> Integer.parseInt(ticket[0])).distinct().toArray());
+            return affected;
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+        return null;
+    }
+
+    // "createArrayOf" needs objects, so the gigIDs are boxed first.
+    private static Integer[] boxGigIDs(int[] gigIDs){
+        Integer[] boxedGigIDs = new Integer[gigIDs.length];
+        for(int x = 0; x < gigIDs.length; x++){
+            boxedGigIDs[x] = gigIDs[x];
+        }
+        return boxedGigIDs;
+    }
+
+    // SQL result: gigID, email (of each affected ticket). An empty array is returned if no ticket is affected.
+    private static String[][] readAffectedTickets(PreparedStatement cancel) throws SQLException{
+        ArrayList<String[]> affected = new ArrayList<>();
+        ResultSet getAffected = cancel.executeQuery();
+        while(getAffected.next()){
+            affected.add(new String[]{getAffected.getString(1), getAffected.getString(2)});
+        }
+        getAffected.close();
+        return affected.toArray(new String[affected.size()][]);
+    }
+
     /* [Option 5: Tickets Needed to Sell]: This option show how many "A"(adult) tickets need selling to reimburse the expense. */
     public static String[][] option5(Connection conn){
-        try{
-            maintainCheck(conn);
+        StringRows ticketToSell = new StringRows();
+        return option5(conn, ticketToSell) < 0 ? null : ticketToSell.toStrings();
+    }
 
+    /* [Option 5 (Streaming)]: The same rows as option5, given to the visitor while they are fetched. It returns the amount of rows visited, or -1 on error.*/
+    public static int option5(Connection conn, RowVisitor visitor){
+        GigMetrics.Timer timer = GigMetrics.begin("option5");
+        try{
             /* VIEW ticketToSell includes:
             (1) gigID: gig serial ID.
             (1) cost_to_reimburse: this includes all actfees (act agreed fee) and venue hirecost.
@@ -258,32 +476,33 @@ public class GigSystem {
             Notice that if a gig has no pricetype 'A', it will still show on the views like balance, but not on the VIEW ticketToSell.
             Please turn to VIEW ticketToSell in schema.sql for details.
             */
-            PreparedStatement searchTicketToSell = conn.prepareStatement("SELECT gigid, adult_ticket_to_sell FROM ticketToSell");
-            ResultSet getTicketToSell = searchTicketToSell.executeQuery();
-
-            // SQL result: gigID, adult_ticket_to_sell.
-            String ticketToSell[][] = convertResultToStrings(getTicketToSell);
-            searchTicketToSell.close();
-            getTicketToSell.close();
-            maintainCheck(conn);
-            return ticketToSell;
+            // SQL result: gigID (INTEGER), adult_ticket_to_sell (DOUBLE PRECISION).
+            return streamReport(conn, "SELECT gigid, adult_ticket_to_sell FROM ticketToSell", null, visitor, timer);
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
             e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
         }
-        return null;
+        return -1;
     }
 
     /* [Option 6: How Many Tickets Sold]: This option shows the amount of tickets an act sold as a headline. */
     public static String[][] option6(Connection conn){
-        try{
-            maintainCheck(conn);
+        StringRows actTicket = new StringRows();
+        return option6(conn, actTicket) < 0 ? null : actTicket.toStrings();
+    }
 
+    /* [Option 6 (Streaming)]: The same rows as option6, given to the visitor while they are fetched. It returns the amount of rows visited, or -1 on error.*/
+    public static int option6(Connection conn, RowVisitor visitor){
+        GigMetrics.Timer timer = GigMetrics.begin("option6");
+        try{
             /* VIEW actUnionTicket includes:
             (1) actname: name of the act which has played as a headline.
             (2) year: the year which the act has played as a headline (for at least once) along with a "Total".
             (3) year_ticket_sold: the amount of tickets sold for the gigs as the act is a headline.
-            There are some intermediate views used during this process, e.g. headlinetime, gigheadline, ticketSold.
+            There are some intermediate views used during this process, e.g. gigheadline (the headline of each gig from TABLE gig_report), ticketSold.
             
             Notice that according to the requirement, this view first put the same actname together in a "block", 
                 and the "block" inside is in an order of year with "Total" at last.
@@ -293,58 +512,52 @@ public class GigSystem {
                 ranked by "Year" column in an order of smaller year - larger year - "Total" (comparable as they are all text).
             Please turn to VIEW actUnionTicket in schema.sql for details.
             */
-            PreparedStatement searchActTicket = conn.prepareStatement("SELECT * FROM actUnionTicket");
-            ResultSet getActTicket = searchActTicket.executeQuery();
-
-            // SQL result: actname, year, year_ticket_sold.
-            String actTicket[][] = convertResultToStrings(getActTicket);
-            searchActTicket.close();
-            getActTicket.close();
-            maintainCheck(conn);
-            return actTicket;
+            // SQL result: actname (VARCHAR), year (TEXT), year_ticket_sold (BIGINT).
+            return streamReport(conn, "SELECT * FROM actUnionTicket", null, visitor, timer);
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
             e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
         }
-        return null;
+        return -1;
     }
 
     /* [Option 7 Regular Customers]: This option shows a list of regular customers of acts. 
         Regular customer (RC) definition: a customer of the act who buys the ticket of this act being a headline for at least 
         once every "year" (as the "year" means that an act used to be a headline in this year).*/
     public static String[][] option7(Connection conn){
-        try{
-            maintainCheck(conn);
-
-            // SQL parameter: PROCEDURE getAllRC().
-            PreparedStatement checkRC = conn.prepareStatement("CALL getAllRC()");
-            checkRC.execute();
+        StringRows RC = new StringRows();
+        return option7(conn, RC) < 0 ? null : RC.toStrings();
+    }
 
+    /* [Option 7 (Streaming)]: The same rows as option7, given to the visitor while they are fetched. It returns the amount of rows visited, or -1 on error.*/
+    public static int option7(Connection conn, RowVisitor visitor){
+        GigMetrics.Timer timer = GigMetrics.begin("option7");
+        try{
             /* VIEW preparedRC includes:
             (1) actname: name of the act which used to be a headline.
-            (2) customername: name of RC.
-            There are some intermediate views used during this process, please turn to VIEW preparedRC in shema.sql for details.
-
-            To get (1) actname in VIEW preparedRC, first we form a view which includes the gigID, the name of headline (by obtaining
-                the largest ontime and matching the act), and the year of performance. Based on this view, we create another view 
-                with distinct year, which lists the years of an act used to be a headline (as RC is required to buy a ticket from 
-                at least one ticket for each).
-            To get (2) customername, based on the actname and year we derived from the last view, we check whether a customer buy at 
-                least one ticket for each year's gig which a certain act is the headline. If so, we add this name to the actname column.
+            (2) customername: name of RC, or [None] if the act has no RC.
+            It is a single query over views created with the schema (no view is created at runtime), so option 7 is read-only and skips the check.
+
+            To get (1) actname in VIEW preparedRC, first we form a view which includes the gigID, the name of headline (the act with the
+                largest ontime, kept for each gig in TABLE gig_report), and the year of performance. Based on this view, we count the distinct years
+                of an act being a headline (as RC is required to buy at least one ticket for each).
+            To get (2) customername, we count the distinct years that each customer buys a ticket of the act being a headline. If the amount
+                equals the amount of years of the act (relational division), the customer is a RC, and RCs are ranked by their amount of tickets.
+            Please turn to VIEW preparedRC in schema.sql for details.
             */
-            PreparedStatement searchRC = conn.prepareStatement("SELECT * FROM preparedRC");
-            ResultSet getRC = searchRC.executeQuery();
-            String RC[][] = convertResultToStrings(getRC);
-            checkRC.close();
-            searchRC.close();
-            getRC.close();
-            maintainCheck(conn);
-            return RC;
+            // SQL result: actname (VARCHAR), customername (VARCHAR).
+            return streamReport(conn, "SELECT * FROM preparedRC", null, visitor, timer);
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
             e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
         }
-        return null;
+        return -1;
     }
 
     /* [Option 8: Economically Feasible Gigs]: This option is to provide a list of economically feasible gigs.
@@ -353,60 +566,417 @@ public class GigSystem {
     Proportion of tickets Definition: amount of tickets required to reimburse total expense (hirecost and standardfee) / venue capacity.
     */
     public static String[][] option8(Connection conn){
-        try{
-            maintainCheck(conn);
+        StringRows feasibleGig = new StringRows();
+        return option8(conn, feasibleGig) < 0 ? null : feasibleGig.toStrings();
+    }
+
+    /* [Option 8 (Streaming)]: The same rows as option8, given to the visitor while they are fetched. It returns the amount of rows visited, or -1 on error.*/
+    public static int option8(Connection conn, RowVisitor visitor){
+        return option8(conn, 0, visitor);
+    }
+
+    /* [Option 8 (Top K)]: The same as option8, but only the first topK acts of each venue (the acts which need the largest share of the venue).*/
+    public static String[][] option8(Connection conn, int topK){
+        StringRows feasibleGig = new StringRows();
+        return option8(conn, topK, feasibleGig) < 0 ? null : feasibleGig.toStrings();
+    }
 
-            String feasibleGig[][] = new String[0][0];
-            // SQL parameter: PROCEDURE searchFeasibleGig().
-            PreparedStatement searchFeasibleGig = conn.prepareStatement("CALL searchFeasibleGig()");
-            searchFeasibleGig.execute();
-            /* VIEW sortedFeasibleGig includes:
+    /* [Option 8 (Top K, Streaming)]: topK is the amount of acts listed for each venue, or 0 for all acts.*/
+    public static int option8(Connection conn, int topK, RowVisitor visitor){
+        GigMetrics.Timer timer = GigMetrics.begin("option8");
+        try{
+            // SQL parameter: FUNCTION feasibleGigs(top_k INTEGER), where NULL means all acts.
+            /* FUNCTION feasibleGigs returns:
             (1) venuename: name of the venue which can be economically feasible with an act of (2)actname.
             (2) actname: name of the act which can be economically feasible in venue of (1)venuename.
             (3) ticket_required: amount of tickets of average price which can reimburse the total cost (hirecost and standardfee).
-            There are some intermediate views used during this process, please turn to VIEW preparedRC in shema.sql for details.
-
-            To get (3) ticket_required, first we create a VIEW actVenue by cross joining act and venue, so we can derive the
-                total cost (venue's hirecost and act's standardfee). Then we calculate the average price of ticket (of gigs which are 
-                not cancelled). Based on the average price, we can calculate the maximum income (average price * capacity). We use this
-                income to minus the total cost, which is the pure interest. As the option aims to "get even", we need to get the amount
-                of tickets required to reimburse the total cost. Therefore, we divide the pure interest by the average price of tickets,
-                which means the maximum amount of tickets that we do not need to "get even". After that, we use capacity to minus this
-                maximum amount of tickets we don't need and then get the least amount of tickets that we need to "get even". Notice that
-                a ceiling is required here as decimal digits does not work for the amount of ticket.
+
+            To get (3) ticket_required, first we calculate the average price of ticket (of gigs which are not cancelled) from the ticket
+                income and the amount of tickets kept for each gig. Based on the average price, we can calculate the maximum income (average
+                price * capacity). We use this income to minus the total cost (venue's hirecost and act's standardfee), which is the pure
+                interest. As the option aims to "get even", we need to get the amount of tickets required to reimburse the total cost.
+                Therefore, we divide the pure interest by the average price of tickets, which means the maximum amount of tickets that we
+                do not need to "get even". After that, we use capacity to minus this maximum amount of tickets we don't need and then get
+                the least amount of tickets that we need to "get even". Notice that a ceiling is required here as decimal digits does not
+                work for the amount of ticket.
+            Each venue only reads the acts whose standardfee can be reimbursed there (by an index on standardfee) instead of every act,
+                and nothing is created at runtime, so option 8 is read-only.
+            Please turn to FUNCTION feasibleGigs in schema.sql for details.
             */
-            PreparedStatement getFeasibleGig = conn.prepareStatement("SELECT * FROM sortedFeasibleGig");
-            ResultSet resultFeasibleGig = getFeasibleGig.executeQuery();
-            feasibleGig = convertResultToStrings(resultFeasibleGig);
-            maintainCheck(conn);
-            return feasibleGig;
+            Binder bindTopK = getFeasibleGig -> {
+                if(topK > 0){
+                    getFeasibleGig.setInt(1, topK);
+                }else{
+                    getFeasibleGig.setNull(1, Types.INTEGER);
+                }
+            };
+
+            // SQL result: venuename (VARCHAR), actname (VARCHAR), ticket_required (NUMERIC).
+            return streamReport(conn, "SELECT * FROM feasibleGigs(?)", bindTopK, visitor, timer);
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+        return -1;
+    }
+
+    // The largest page of a paged report, so that one page cannot hold a whole report in memory (and pageSize + 1 cannot overflow).
+    public static final int MAX_PAGE_SIZE = 10000;
+
+    /* [Option 6 (Paged)]: The rows of option6 from the token on, at most pageSize of them. The token is null for the first page, and then the
+        next token of the page before. It returns null on error, and throws IllegalArgumentException for a bad token or page size.*/
+    public static ReportPage option6Page(Connection conn, String token, int pageSize){
+        GigMetrics.Timer timer = GigMetrics.begin("option6Page");
+        try{
+            /* The rank of an act comes from its total of tickets (and actname for the same total), so the key of a row is
+                (total_ticket_sold, actname, year), which is in the same order as rank, year. Please turn to VIEW keyedActTicket in schema.sql.*/
+            // SQL parameter: the key of the last row of the previous page, and the page size (one more row is read to see whether there is a next page).
+            // SQL result: actname (VARCHAR), year (TEXT), year_ticket_sold (NUMERIC), then the key: total_ticket_sold (NUMERIC), actname, year.
+            return readPage(conn, 6, "SELECT actname, year, year_ticket_sold, total_ticket_sold, actname, year FROM keyedActTicket",
+                "(total_ticket_sold, actname, year) > (?::NUMERIC, ?, ?)", new int[]{0, 1, 2}, "total_ticket_sold, actname, year", 3, 0, null, token, pageSize, timer);
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+        return null;
+    }
+
+    /* [Option 7 (Paged)]: The rows of option7 from the token on, at most pageSize of them. It returns null on error.*/
+    public static ReportPage option7Page(Connection conn, String token, int pageSize){
+        GigMetrics.Timer timer = GigMetrics.begin("option7Page");
+        try{
+            /* The key of a row is (actname, ticket_count DESC, customername), which is unique as RCs are listed by name. The descending part is
+                compared by its negation, so that the whole key is compared as one row. The condition on actname alone is pushed into the views,
+                so the acts before the page are not aggregated. Please turn to VIEW rankedRC in schema.sql.*/
+            // SQL parameter: the key of the last row of the previous page, and the page size.
+            // SQL result: actname (VARCHAR), customername (VARCHAR), then the key: actname, ticket_count (BIGINT), customername.
+            return readPage(conn, 7, "SELECT actname, customername, actname, ticket_count, customername FROM rankedRC",
+                "actname >= ? AND (actname, -ticket_count, customername) > (?, -(?::BIGINT), ?)", new int[]{0, 0, 1, 2}, "actname, ticket_count DESC, customername",
+                2, 0, null, token, pageSize, timer);
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+        return null;
+    }
+
+    /* [Option 8 (Paged)]: The rows of option8 from the token on, at most pageSize of them. It returns null on error.*/
+    public static ReportPage option8Page(Connection conn, String token, int pageSize){
+        return option8Page(conn, 0, token, pageSize);
+    }
+
+    /* [Option 8 (Top K, Paged)]: topK is the amount of acts listed for each venue, or 0 for all acts.*/
+    public static ReportPage option8Page(Connection conn, int topK, String token, int pageSize){
+        GigMetrics.Timer timer = GigMetrics.begin("option8Page");
+        try{
+            /* The key of a row is (venuename, proportion DESC, actname, venueid, actid), where the ids tell apart the venues and acts of the same name.
+                The condition on venuename alone skips the venues before the page. Please turn to FUNCTION keyedFeasibleGigs in schema.sql.*/
+            // SQL parameter: FUNCTION keyedFeasibleGigs(top_k INTEGER), where NULL means all acts, the key of the last row of the previous page, and the page size.
+            // SQL result: venuename (VARCHAR), actname (VARCHAR), ticket_required (NUMERIC), then the key: venuename, proportion (FLOAT), actname, venueid, actid.
+            Binder bindTopK = getFeasibleGig -> {
+                if(topK > 0){
+                    getFeasibleGig.setInt(1, topK);
+                }else{
+                    getFeasibleGig.setNull(1, Types.INTEGER);
+                }
+            };
+            return readPage(conn, 8, "SELECT venuename, actname, ticket_required, venuename, proportion, actname, venueid, actid FROM keyedFeasibleGigs(?)",
+                "venuename >= ? AND (venuename, -proportion, actname, venueid, actid) > (?, -(?::FLOAT), ?, ?::INTEGER, ?::INTEGER)", new int[]{0, 0, 1, 2, 3, 4},
+                "venuename, proportion DESC, actname, venueid, actid", 3, 1, bindTopK, token, pageSize, timer);
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
             e.printStackTrace();
-        }        
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
         return null;
     }
 
-    // This method will check before and after a call of options based on the instructed criteria.
+    /* This method will check before and after a call of options based on the instructed criteria, for the gigs which the option reads or changes
+        (e.g. the gig of a booking), so that the breaches of other gigs are not reported to this caller.*/
+    public static void maintainCheck(Connection conn, int... gigIDs){
+        if(gigIDs.length > 0 || fullCheck){
+            maintainCheck(conn, boxGigIDs(gigIDs));
+        }
+    }
+
+    // This method checks all gigs which are touched since the last check (of any caller), e.g. for a maintenance job.
     public static void maintainCheck(Connection conn){
+        maintainCheck(conn, (Integer[]) null);
+    }
+
+    private static void maintainCheck(Connection conn, Integer[] gigIDs){
+        GigMetrics.Timer timer = GigMetrics.begin("maintainCheck");
         try{
-            /* SQL parameter: PROCEDURE checkAllCriteria().
-            This SQL execution loops all gigs which are not cancelled, and then call FUNCTION checkCriteria(gigID) to see whether
-            a gig's current status breaks the following criterias:
+            /* SQL parameter: PROCEDURE checkDirtyCriteria(gig_ids INTEGER[]) or PROCEDURE checkAllCriteria().
+            By default only the given gigs (or all gigs if gigIDs is null) which are touched (by changes of gig, act_gig, or ticket) since the last
+            check are checked, which are tracked by triggers in TABLE gig_dirty. If fullCheck is set, all gigs which are not cancelled are checked instead.
+            FUNCTION checkCriteria(gigID) is called for each of them to see whether a gig's current status breaks the following criterias:
             (1) TIME CONFLICT: act's performance overlaps or act starts before the gig date.
             (2) TIME INTERVAL TOO LONG: act's performance gap is larger than 20 minutes or the first act starts 20 minutes later than the gig date.
             (3) ACT OVERTIME: an act plays longer than 2 hours.
             (4) DATE CROSSED: acts in a given gig plays on different date (which means crossing the midnight).
             (5) VENUE OVERLOAD: the ticket sold is greater than the venue capacity.*/
-            PreparedStatement checkCriteria = conn.prepareStatement("CALL checkAllCriteria()");
+            PreparedStatement checkCriteria = prepare(conn, fullCheck ? "CALL checkAllCriteria()" : "CALL checkDirtyCriteria(?)");
+            if(!fullCheck){
+                if(gigIDs == null){
+                    checkCriteria.setNull(1, Types.ARRAY);
+                }else{
+                    checkCriteria.setArray(1, conn.createArrayOf("integer", gigIDs));
+                }
+            }
             checkCriteria.execute();
-            checkCriteria.close();
         }catch(SQLException e){
             System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
             e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+    }
+
+    /* [Storage Maintenance]: This method adds the partitions of gig, act_gig, and ticket for the next years (PROCEDURE addGigPartitions), and rolls up
+        the years which are over (PROCEDURE rollupClosedYears), which option 6 and 7 then read instead of their gigs and tickets. It is meant to run
+        from time to time (e.g. nightly) on a connection with AutoCommit, as each year is rolled up and committed on its own.*/
+    public static void maintainStorage(Connection conn){
+        GigMetrics.Timer timer = GigMetrics.begin("maintainStorage");
+        try{
+            prepare(conn, "CALL addGigPartitions()").execute();
+            prepare(conn, "CALL rollupClosedYears()").execute();
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }finally{
+            timer.close();
+        }
+    }
+
+    /* Results are read through a cursor, fetchSize rows per round trip, instead of being held by the driver as a whole.
+        It can also be set with -Dgigsystem.fetchSize=n. */
+    public static final int DEFAULT_FETCH_SIZE = 500;
+    private static volatile int fetchSize = Integer.getInteger("gigsystem.fetchSize", DEFAULT_FETCH_SIZE);
+
+    public static void setFetchSize(int size){
+        if(size <= 0){
+            throw new IllegalArgumentException("fetch size must be positive");
+        }
+        fetchSize = size;
+    }
+
+    public static int getFetchSize(){
+        return fetchSize;
+    }
+
+    /* This method executes a query and gives each row to the visitor while it is fetched. It returns the amount of rows visited.
+        The driver only fetches through a cursor inside a transaction, so a query on an AutoCommit connection is run in its own
+        (read-only) transaction, which is ended before returning. A transaction opened by the caller is left as it is.*/
+    static int streamQuery(Connection conn, PreparedStatement query, RowVisitor visitor) throws SQLException{
+        boolean autoCommit = conn.getAutoCommit();
+        if(autoCommit){
+            conn.setAutoCommit(false);
+        }
+        int rows = 0;
+        try{
+            query.setFetchSize(fetchSize);
+            try(ResultSet result = query.executeQuery()){
+                while(result.next()){
+                    rows ++;
+                    if(!visitor.visit(result)){
+                        break;
+                    }
+                }
+            }
+        }finally{
+            if(autoCommit){
+                // Nothing is written, so the transaction is only ended to release its snapshot.
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+        return rows;
+    }
+
+    // Sets the parameters of a report query, on whichever connection it runs.
+    @FunctionalInterface
+    private interface Binder {
+        void bind(PreparedStatement query) throws SQLException;
+    }
+
+    /* This method streams a report (option 5 to 8) from a replica if the ReplicaRouter lends one, and from conn otherwise. The outcome of the
+        timer tells which one served it (REPLICA or PRIMARY) while a router is set.
+        (1) A transaction opened by the caller may hold its own writes, which the replica cannot see yet, so it is always read on conn.
+        (2) If the replica fails before any row is visited, the report runs again on conn. Once rows are given to the visitor, the error is
+            thrown as usual, as the visitor cannot take them back.*/
+    private static int streamReport(Connection conn, String sql, Binder binder, RowVisitor visitor, GigMetrics.Timer timer) throws SQLException{
+        ReplicaRouter router = replicaRouter;
+        if(router != null){
+            Connection replica = conn.getAutoCommit() ? router.borrow() : null;
+            if(replica != null){
+                int[] visited = {0};
+                try{
+                    PreparedStatement query = prepare(replica, sql);
+                    if(binder != null){
+                        binder.bind(query);
+                    }
+                    int rows = streamQuery(replica, query, row -> {
+                        visited[0] ++;
+                        return visitor.visit(row);
+                    });
+                    timer.outcome("REPLICA");
+                    return rows;
+                }catch(SQLException e){
+                    router.failed(e);
+                    if(visited[0] > 0){
+                        throw e;
+                    }
+                }finally{
+                    router.release(replica);
+                }
+            }
+            timer.outcome("PRIMARY");
+        }
+        PreparedStatement query = prepare(conn, sql);
+        if(binder != null){
+            binder.bind(query);
+        }
+        return streamQuery(conn, query, visitor);
+    }
+
+    /* This method reads a page of a report by keyset pagination: select lists the columns of the report and then the columns of the key, after is the
+        condition which keeps the rows after a key, keyParameters tells which column of the key each of its parameters is, and orderBy is the order of the key.
+        The key parameters come after the first leading parameters, which are set by binder. pageSize + 1 rows are read, so that the next token is
+        only given if there is a row after the page. The page is read through streamReport, so it may run on a replica.*/
+    private static ReportPage readPage(Connection conn, int report, String select, String after, int[] keyParameters, String orderBy, int columns, int leading,
+        Binder binder, String token, int pageSize, GigMetrics.Timer timer) throws SQLException{
+        if(pageSize <= 0 || pageSize > MAX_PAGE_SIZE){
+            throw new IllegalArgumentException("page size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        int keys = Arrays.stream(keyParameters).max().getAsInt() + 1;
+        String[] key = ReportPage.decode(report, keys, token);
+        String sql = select + (key == null ? "" : " WHERE " + after) + " ORDER BY " + orderBy + " LIMIT ?";
+        Binder bindPage = query -> {
+            if(binder != null){
+                binder.bind(query);
+            }
+            int parameter = leading;
+            if(key != null){
+                for(int keyColumn : keyParameters){
+                    query.setString(++ parameter, key[keyColumn]);
+                }
+            }
+            query.setInt(++ parameter, pageSize + 1);
+        };
+
+        ArrayList<String[]> rows = new ArrayList<>();
+        String[][] lastKey = new String[1][];
+        streamReport(conn, sql, bindPage, row -> {
+            if(rows.size() == pageSize){
+                // A row after the page: the page is not the last one.
+                lastKey[0] = keyOf(rows.get(pageSize - 1), columns);
+                return false;
+            }
+            String[] thisRow = new String[columns + keys];
+            for(int i = 0; i < thisRow.length; i++){
+                thisRow[i] = row.getString(i+1);
+            }
+            rows.add(thisRow);
+            return true;
+        }, timer);
+
+        String[][] page = new String[rows.size()][];
+        for(int i = 0; i < page.length; i++){
+            page[i] = Arrays.copyOf(rows.get(i), columns);
+        }
+        return new ReportPage(page, lastKey[0] == null ? null : ReportPage.encode(report, lastKey[0]));
+    }
+
+    private static String[] keyOf(String[] row, int columns){
+        return Arrays.copyOfRange(row, columns, row.length);
+    }
+
+    /* StringRows is the visitor which keeps every value as a String, i.e. the output of the options before streaming.
+        The rows are kept in one ArrayList and copied (by reference) only once into the String[][] returned by toStrings().*/
+    public static final class StringRows implements RowVisitor {
+
+        private final ArrayList<String[]> rows = new ArrayList<>();
+        private int columns = -1;
+
+        @Override
+        public boolean visit(ResultSet row) throws SQLException{
+            if(columns < 0){
+                columns = row.getMetaData().getColumnCount();
+            }
+            String[] thisRow = new String[columns];
+            for(int i = 0; i < columns; i++){
+                thisRow[i] = row.getString(i+1);
+            }
+            rows.add(thisRow);
+            return true;
+        }
+
+        // It returns null (and prints a notice) if there is no row, the same as convertResultToStrings.
+        public String[][] toStrings(){
+            if(rows.isEmpty()){
+                System.out.println("NO ROW TO PRINT.");
+                return null;
+            }
+            return rows.toArray(new String[rows.size()][]);
+        }
+    }
+
+    /* Prepared statements are cached per connection (and per SQL string), so that each option parses its SQL once per connection
+        instead of once per call. The driver turns a statement which is executed repeatedly into a server-side prepared statement,
+        so the planning work is reused as well. Therefore, statements from prepare() must not be closed by the caller.*/
+    private static final ConcurrentHashMap<Connection, ConcurrentHashMap<String, PreparedStatement>> statements = new ConcurrentHashMap<>();
+
+    static PreparedStatement prepare(Connection conn, String sql) throws SQLException{
+        ConcurrentHashMap<String, PreparedStatement> cache = statements.get(conn);
+        if(cache == null){
+            // A new connection is seen, so forget the statements of connections which are closed since then.
+            statements.keySet().removeIf(GigSystem::isClosed);
+            cache = statements.computeIfAbsent(conn, c -> new ConcurrentHashMap<>());
+        }
+        PreparedStatement statement = cache.get(sql);
+        if(statement == null || statement.isClosed()){
+            // Every execution of a cached statement is measured (see GigMetrics).
+            statement = GigMetrics.instrument(conn.prepareStatement(sql), sql);
+            cache.put(sql, statement);
+        }
+        return statement;
+    }
+
+    // This method closes and forgets the cached statements of a connection, e.g. before the connection is closed.
+    static void forgetStatements(Connection conn){
+        ConcurrentHashMap<String, PreparedStatement> cache = statements.remove(conn);
+        if(cache != null){
+            for(PreparedStatement statement : cache.values()){
+                try{
+                    statement.close();
+                }catch(SQLException e){
+                    System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+                }
+            }
         }
     }
 
+    private static boolean isClosed(Connection conn){
+        try{
+            return conn.isClosed();
+        }catch(SQLException e){
+            return true;
+        }
+    }
 
     /**
      * Prompts the user for input
@@ -486,35 +1056,17 @@ public class GigSystem {
         }
     }
 
+    // Kept for existing callers, it reads the rest of a ResultSet through StringRows. Streaming callers should use a RowVisitor instead.
     public static String[][] convertResultToStrings(ResultSet rs){
-        Vector<String[]> output = null;
-        String[][] out = null;
+        StringRows output = new StringRows();
         try {
-            int columns = rs.getMetaData().getColumnCount();
-            output = new Vector<String[]>();
-            int rows = 0;
             while(rs.next()){
-                String[] thisRow = new String[columns];
-                for(int i = 0; i < columns; i++){
-                    thisRow[i] = rs.getString(i+1);
-                }
-                output.add(thisRow);
-                rows++;
-            }
-            // System.out.println(rows + " rows and " + columns + " columns");
-            if(rows > 0){
-                out = new String[rows][columns];
-                for(int i = 0; i < rows; i++){
-                    out[i] = output.get(i);
-                }
-            }
-            else{
-                System.out.println("NO ROW TO PRINT.");
+                output.visit(rs);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return out;
+        return output.toStrings();
     }
 
     public static void printTable(String[][] out){
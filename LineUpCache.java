@@ -0,0 +1,241 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/* LineUpCache keeps the output of option 1 (the line-up of a gig) in memory, keyed by gigID, as a line-up rarely changes once the gig is set up.
+    (1) Size: at most maxEntries line-ups are kept, and the least recently used one is evicted first.
+    (2) Time: a line-up is read again from the database once it is older than ttlMillis, whatever happens.
+    (3) Writes: every cache in this JVM drops a gig as soon as GigSystem changes its line-up (option 2 and 4), and listen() drops the gigs
+        which other writers change, by the notifications on the channel gig_lineup (see FUNCTION notifyLineUp in schema.sql).
+    A gig without acts is cached as well (as null, the same as option 1 returns), so creating a gig also drops its gigID.
+    The cached arrays are shared by all callers and must not be modified. */
+public class LineUpCache implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+    // How long the listener waits for notifications at a time, and before it reconnects after losing its connection.
+    private static final int LISTEN_TIMEOUT_MILLIS = 1000;
+
+    // Every open cache, so that a write through GigSystem drops the gig from all of them.
+    private static final Set<LineUpCache> caches = ConcurrentHashMap.newKeySet();
+
+    // A read of the line-up from the database, e.g. by GigSystem.readLineUp on a connection.
+    @FunctionalInterface
+    public interface Loader {
+        String[][] load(int gigID) throws SQLException;
+    }
+
+    private static final class Entry {
+        final String[][] lineUp;
+        final long expiresAt;
+
+        Entry(String[][] lineUp, long expiresAt){
+            this.lineUp = lineUp;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<Integer, Entry> entries;
+    // Increased by every invalidation, so that a line-up read before a write is not put into the cache after it.
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private volatile Thread listener;
+
+    public LineUpCache(int maxEntries, long ttlMillis){
+        if(maxEntries <= 0 || ttlMillis <= 0){
+            throw new IllegalArgumentException("maxEntries and ttlMillis must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        // An access-ordered map, so the eldest entry is the least recently used one.
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest){
+                if(size() > LineUpCache.this.maxEntries){
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        caches.add(this);
+    }
+
+    public LineUpCache(){
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    // This method returns the cached line-up of a gig, or reads it by the loader (outside the lock) and keeps it. Errors are not cached.
+    public String[][] get(int gigID, Loader loader) throws SQLException{
+        long now = System.currentTimeMillis();
+        synchronized(entries){
+            Entry entry = entries.get(gigID);
+            if(entry != null){
+                if(entry.expiresAt > now){
+                    hits.incrementAndGet();
+                    return entry.lineUp;
+                }
+                entries.remove(gigID);
+                evictions.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        long readGeneration = generation.get();
+        String[][] lineUp = loader.load(gigID);
+        synchronized(entries){
+            if(generation.get() == readGeneration){
+                entries.put(gigID, new Entry(lineUp, now + ttlMillis));
+            }
+        }
+        return lineUp;
+    }
+
+    public void invalidate(int gigID){
+        generation.incrementAndGet();
+        synchronized(entries){
+            entries.remove(gigID);
+        }
+        invalidations.incrementAndGet();
+    }
+
+    public void invalidateAll(){
+        generation.incrementAndGet();
+        synchronized(entries){
+            entries.clear();
+        }
+        invalidations.incrementAndGet();
+    }
+
+    // This method drops a gig from every cache in this JVM. It is called by GigSystem after a line-up is changed.
+    static void invalidateGig(int gigID){
+        for(LineUpCache cache : caches){
+            cache.invalidate(gigID);
+        }
+    }
+
+    // This method drops every gig from every cache in this JVM, e.g. after a bulk import of line-ups.
+    static void invalidateAllGigs(){
+        for(LineUpCache cache : caches){
+            cache.invalidateAll();
+        }
+    }
+
+    /* This method starts a daemon thread which listens to the channel gig_lineup on its own connection (from the factory) and drops each notified gig.
+        If the connection is lost, notifications may be missed, so the whole cache is dropped before listening again.*/
+    public synchronized void listen(Callable<Connection> factory){
+        if(listener != null){
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            while(listener == Thread.currentThread()){
+                Connection conn = null;
+                try{
+                    conn = factory.call();
+                    if(conn == null){
+                        throw new SQLException("Connection could not be opened", "08001");
+                    }
+                    try(Statement statement = conn.createStatement()){
+                        statement.execute("LISTEN gig_lineup");
+                    }
+                    // Line-ups changed before LISTEN took effect are not notified.
+                    invalidateAll();
+                    PGConnection pgConn = conn.unwrap(PGConnection.class);
+                    while(listener == Thread.currentThread()){
+                        PGNotification[] notifications = pgConn.getNotifications(LISTEN_TIMEOUT_MILLIS);
+                        if(notifications == null){
+                            continue;
+                        }
+                        for(PGNotification notification : notifications){
+                            try{
+                                invalidate(Integer.parseInt(notification.getParameter()));
+                            }catch(NumberFormatException e){
+                                invalidateAll();
+                            }
+                        }
+                    }
+                }catch(Exception e){
+                    if(listener == Thread.currentThread()){
+                        System.err.format("LineUpCache listener: %s\n", e.getMessage());
+                        invalidateAll();
+                        try{
+                            Thread.sleep(LISTEN_TIMEOUT_MILLIS);
+                        }catch(InterruptedException interrupted){
+                            return;
+                        }
+                    }
+                }finally{
+                    if(conn != null){
+                        try{
+                            conn.close();
+                        }catch(SQLException e){
+                            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "LineUpCache-listener");
+        thread.setDaemon(true);
+        listener = thread;
+        thread.start();
+    }
+
+    public long getHits(){
+        return hits.get();
+    }
+
+    public long getMisses(){
+        return misses.get();
+    }
+
+    // Line-ups dropped because the cache is full or they are too old.
+    public long getEvictions(){
+        return evictions.get();
+    }
+
+    // Line-ups dropped because of a write (in this JVM or notified).
+    public long getInvalidations(){
+        return invalidations.get();
+    }
+
+    public int size(){
+        synchronized(entries){
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "LineUpCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "]";
+    }
+
+    // Stops the listener and removes this cache from the caches dropped by GigSystem.
+    @Override
+    public void close(){
+        caches.remove(this);
+        Thread thread;
+        synchronized(this){
+            thread = listener;
+            listener = null;
+        }
+        if(thread != null){
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/* LineUpValidator checks the line-up of a new gig (the onTimes and durations given to option 2) against the same criteria as FUNCTION gigViolations
+    in schema.sql, before anything is sent to the database:
+    (1) TIME CONFLICT: act's performance overlaps the previous one, or act starts before the gig date.
+    (2) TIME INTERVAL TOO LARGE: act's performance gap is larger than 20 minutes or the first act starts 20 minutes later than the gig date.
+    (3) ACT OVERTIME: an act plays longer than 2 hours.
+    (4) DATE CROSSED: act's performance crosses midnight.
+    (5) VENUE OVERLOAD cannot happen to a new gig, as it has no ticket yet.
+    As in createGig, the gig date is the ontime of the first act given (not the earliest one). Acts are checked in the order of ontime and, like
+    gigViolations, acts starting at the same time are checked shortest first (acts of the same ontime and duration are checked alike, whatever their
+    actID), so the breach returned is the one FUNCTION checkCriteria would return, while checkCriteria stays the final check.
+    benchmark/LineUpValidatorCheck compares both on random line-ups.
+    The acts are sorted by an insertion sort (a line-up is short) over buffers kept per thread, so a check allocates nothing once the buffers are big enough.*/
+public final class LineUpValidator {
+
+    private static final long MICROS_PER_MINUTE = 60_000_000L;
+    private static final long MICROS_PER_DAY = 1440 * MICROS_PER_MINUTE;
+    private static final long MAX_GAP = 20 * MICROS_PER_MINUTE;
+    private static final int MAX_DURATION = 120;
+
+    // Per-thread buffers: the order of acts, and the ontime of each act in microseconds (the precision of TIMESTAMP).
+    private static final class Buffers {
+        int[] order = new int[16];
+        long[] starts = new long[16];
+    }
+
+    private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    private LineUpValidator(){
+    }
+
+    /* This method returns the first breach of the line-up (by the order of ontime), using the same text as FUNCTION gigViolations, or null if there is none.
+        A line-up which the database would refuse for other reasons (no act, arrays of different lengths, a missing ontime) is left to the database, so null is returned.*/
+    public static String firstViolation(LocalDateTime[] onTimes, int[] durations){
+        if(onTimes == null || durations == null || onTimes.length == 0 || onTimes.length != durations.length){
+            return null;
+        }
+        int acts = onTimes.length;
+        Buffers buffer = buffers.get();
+        if(buffer.order.length < acts){
+            buffer.order = new int[Math.max(acts, buffer.order.length * 2)];
+            buffer.starts = new long[buffer.order.length];
+        }
+        int[] order = buffer.order;
+        long[] starts = buffer.starts;
+
+        for(int x = 0; x < acts; x++){
+            if(onTimes[x] == null){
+                return null;
+            }
+            starts[x] = toMicros(onTimes[x]);
+            // Insertion sort by ontime, then duration.
+            int y = x - 1;
+            while(y >= 0 && (starts[order[y]] > starts[x] || (starts[order[y]] == starts[x] && durations[order[y]] > durations[x]))){
+                order[y + 1] = order[y];
+                y--;
+            }
+            order[y + 1] = x;
+        }
+
+        // For the first act, the previous offtime is the gig date, i.e. LAG(offtime, 1, gigdate).
+        long previous = starts[0];
+        for(int x = 0; x < acts; x++){
+            int act = order[x];
+            long onTime = starts[act];
+            long offTime = onTime + durations[act] * MICROS_PER_MINUTE;
+            if(onTime < previous){
+                return "TIME CONFLICT";
+            }
+            if(onTime - previous > MAX_GAP){
+                return "TIME INTERVAL TOO LARGE";
+            }
+            if(durations[act] > MAX_DURATION){
+                return "ACT OVERTIME";
+            }
+            if(Math.floorDiv(onTime, MICROS_PER_DAY) != Math.floorDiv(offTime, MICROS_PER_DAY)){
+                return "DATE CROSSED";
+            }
+            previous = offTime;
+        }
+        return null;
+    }
+
+    // A TIMESTAMP keeps microseconds, and the driver rounds the nanoseconds of a LocalDateTime to them.
+    private static long toMicros(LocalDateTime time){
+        return time.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + (time.getNano() + 500) / 1000;
+    }
+}
@@ -0,0 +1,216 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* ReplicaRouter lends connections to a read-only copy of the database (a hot standby, or a second instance fed by logical replication), on which
+    GigSystem runs the reports (option 5 to 8) once it is set by GigSystem.setReplicaRouter. Bookings and other writes always stay on the primary.
+    (1) Staleness: the lag of the replica (FUNCTION replicationLag in schema.sql) is read at most once per checkIntervalMillis. While it is above
+        maxStalenessMillis, or unknown, no replica connection is lent and the reports run on the primary.
+    (2) Failures: a replica which cannot be reached or fails a report is left alone until the next check, and the report runs on the primary.
+    (3) Heartbeat: the lag is measured by TABLE replica_heartbeat, so heartbeat() starts a daemon thread which writes it on the primary (from the
+        factory) every checkIntervalMillis. Without it, only a hot standby tells its lag, and only from the WAL it has already received.
+    Replica connections are pooled apart from the primary ones, and are set read-only, so a report can never write to the replica.*/
+public class ReplicaRouter implements AutoCloseable {
+
+    public static final long DEFAULT_MAX_STALENESS_MILLIS = 5000;
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+    // A report does not wait long for a replica connection, as the primary connection is already held.
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
+    private final ConnectionPool replicas;
+    private final long maxStalenessMillis;
+    private final long checkIntervalMillis;
+
+    // The lag read by the last check (NaN if unknown, or if the replica failed since then), and when the next check is due.
+    private volatile double lagMillis = Double.NaN;
+    private volatile long nextCheckAt = 0;
+
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile Thread heartbeat;
+
+    public ReplicaRouter(Callable<Connection> factory, int maxConnections, long timeoutMillis, long maxStalenessMillis, long checkIntervalMillis){
+        if(maxStalenessMillis < 0 || checkIntervalMillis <= 0){
+            throw new IllegalArgumentException("maxStalenessMillis must not be negative and checkIntervalMillis must be positive");
+        }
+        this.replicas = new ConnectionPool(factory, maxConnections, timeoutMillis);
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    public ReplicaRouter(Callable<Connection> factory, int maxConnections){
+        this(factory, maxConnections, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_STALENESS_MILLIS, DEFAULT_CHECK_INTERVAL_MILLIS);
+    }
+
+    /* This method lends a replica connection which is fresh enough, or returns null, in which case the caller runs on the primary.
+        A connection which is lent must be given back by release().*/
+    public Connection borrow(){
+        long now = System.currentTimeMillis();
+        if(now < nextCheckAt && !isFresh()){
+            stale.incrementAndGet();
+            return null;
+        }
+        Connection conn;
+        try{
+            conn = replicas.borrow();
+        }catch(SQLException e){
+            failed(e);
+            return null;
+        }
+        try{
+            if(!conn.isReadOnly()){
+                conn.setReadOnly(true);
+            }
+            if(now >= nextCheckAt){
+                // Threads which find the check due at the same time may all check, which only costs a few more round trips.
+                nextCheckAt = now + checkIntervalMillis;
+                lagMillis = readLag(conn);
+            }
+        }catch(SQLException e){
+            replicas.release(conn);
+            failed(e);
+            return null;
+        }
+        if(!isFresh()){
+            replicas.release(conn);
+            stale.incrementAndGet();
+            return null;
+        }
+        routed.incrementAndGet();
+        return conn;
+    }
+
+    public void release(Connection conn){
+        replicas.release(conn);
+    }
+
+    // This method leaves the replica alone until the next check, e.g. after a report failed on it.
+    public void failed(SQLException e){
+        System.err.format("Replica: SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+        failures.incrementAndGet();
+        lagMillis = Double.NaN;
+        nextCheckAt = System.currentTimeMillis() + checkIntervalMillis;
+    }
+
+    private boolean isFresh(){
+        double lag = lagMillis;
+        return !Double.isNaN(lag) && lag <= maxStalenessMillis;
+    }
+
+    // SQL result: the lag of the replica in milliseconds, or NULL (read as NaN) if it is unknown.
+    private static double readLag(Connection conn) throws SQLException{
+        try(ResultSet getLag = GigSystem.prepare(conn, "SELECT replicationLag()").executeQuery()){
+            if(!getLag.next()){
+                return Double.NaN;
+            }
+            double lag = getLag.getDouble(1);
+            return getLag.wasNull() ? Double.NaN : lag;
+        }
+    }
+
+    /* This method starts a daemon thread which calls PROCEDURE beatReplicaHeartbeat on its own primary connection (from the factory) every
+        checkIntervalMillis. If the connection is lost, it is opened again at the next beat. close() stops it by PROCEDURE stopReplicaHeartbeat,
+        so a heartbeat which is no longer written is not read as lag. Only one router should beat a primary.*/
+    public synchronized void heartbeat(Callable<Connection> factory){
+        if(heartbeat != null){
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            Connection conn = null;
+            while(heartbeat == Thread.currentThread()){
+                try{
+                    if(conn == null || conn.isClosed()){
+                        conn = factory.call();
+                        if(conn == null){
+                            throw new SQLException("Connection could not be opened", "08001");
+                        }
+                    }
+                    GigSystem.prepare(conn, "CALL beatReplicaHeartbeat()").execute();
+                }catch(Exception e){
+                    if(heartbeat == Thread.currentThread()){
+                        System.err.format("ReplicaRouter heartbeat: %s\n", e.getMessage());
+                    }
+                    close(conn);
+                    conn = null;
+                }
+                try{
+                    Thread.sleep(checkIntervalMillis);
+                }catch(InterruptedException interrupted){
+                    break;
+                }
+            }
+            if(conn != null){
+                try{
+                    GigSystem.prepare(conn, "CALL stopReplicaHeartbeat()").execute();
+                }catch(SQLException e){
+                    System.err.format("ReplicaRouter heartbeat: %s\n", e.getMessage());
+                }
+            }
+            close(conn);
+        }, "ReplicaRouter-heartbeat");
+        thread.setDaemon(true);
+        heartbeat = thread;
+        thread.start();
+    }
+
+    private static void close(Connection conn){
+        if(conn == null){
+            return;
+        }
+        GigSystem.forgetStatements(conn);
+        try{
+            conn.close();
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+        }
+    }
+
+    // The lag read by the last check in milliseconds, or NaN if it is unknown.
+    public double getLagMillis(){
+        return lagMillis;
+    }
+
+    // Reports lent a replica connection.
+    public long getRouted(){
+        return routed.get();
+    }
+
+    // Reports sent to the primary because the replica is too far behind (or its lag is unknown).
+    public long getStale(){
+        return stale.get();
+    }
+
+    // Replica connections or reports which failed, after which the reports went to the primary.
+    public long getFailures(){
+        return failures.get();
+    }
+
+    @Override
+    public String toString(){
+        return "ReplicaRouter[lagMillis=" + getLagMillis() + ", routed=" + getRouted() + ", stale=" + getStale() + ", failures=" + getFailures() + "]";
+    }
+
+    // Stops the heartbeat (waiting for its last write) and closes the idle replica connections.
+    @Override
+    public void close(){
+        Thread thread;
+        synchronized(this){
+            thread = heartbeat;
+            heartbeat = null;
+        }
+        if(thread != null){
+            thread.interrupt();
+            try{
+                thread.join(DEFAULT_TIMEOUT_MILLIS);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        replicas.close();
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+/* ReportPage is one page of a paged report (option 6, 7, or 8, see GigSystem.option6Page): its rows, in the same columns as the report, and the token
+    of the next page, or null if this is the last one.
+    The token holds the key of the last row of the page (e.g. venuename, proportion, actname, and ids for option 8), so the next page is read by a
+    condition on the key (keyset pagination) instead of skipping the rows before it (OFFSET), and page N costs the same as page 1. Rows written
+    or removed between two pages move the rows after them, but no row is read twice and no unchanged row is missed.
+    The token is opaque to the caller (URL-safe Base64), and tokens of one report are refused by the others. */
+public final class ReportPage {
+
+    private final String[][] rows;
+    private final String nextToken;
+
+    ReportPage(String[][] rows, String nextToken){
+        this.rows = rows;
+        this.nextToken = nextToken;
+    }
+
+    // The rows of this page, which is empty (not null) if the report has no row after the token.
+    public String[][] getRows(){
+        return rows;
+    }
+
+    // The token which reads the next page, or null if this is the last page.
+    public String getNextToken(){
+        return nextToken;
+    }
+
+    public boolean hasNext(){
+        return nextToken != null;
+    }
+
+    static String encode(int report, String[] key){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(bytes)){
+            out.writeByte(report);
+            out.writeByte(key.length);
+            for(String value : key){
+                out.writeUTF(value);
+            }
+        }catch(IOException e){
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    // This method returns the key in a token of the given report, or null for the first page (no token). It throws IllegalArgumentException for a bad token.
+    static String[] decode(int report, int keys, String token){
+        if(token == null || token.isEmpty()){
+            return null;
+        }
+        byte[] bytes;
+        try{
+            bytes = Base64.getUrlDecoder().decode(token);
+        }catch(IllegalArgumentException e){
+            throw new IllegalArgumentException("Bad page token");
+        }
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))){
+            if(in.readByte() != report || in.readByte() != keys){
+                throw new IllegalArgumentException("Page token of another report");
+            }
+            String[] key = new String[keys];
+            for(int i = 0; i < keys; i++){
+                key[i] = in.readUTF();
+            }
+            if(in.read() != -1){
+                throw new IllegalArgumentException("Bad page token");
+            }
+            return key;
+        }catch(IOException e){
+            throw new IllegalArgumentException("Bad page token");
+        }
+    }
+}
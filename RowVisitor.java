@@ -0,0 +1,12 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/* A RowVisitor is given the rows of a result one by one while they are fetched (see GigSystem.streamQuery), so a big result of
+    option 5 to 8 is never held in memory as a whole. The visitor reads the columns it needs by their own type (e.g. getInt, getLong)
+    from the current row, and must not move the ResultSet itself. GigSystem.StringRows is the visitor which keeps the old String[][] output. */
+@FunctionalInterface
+public interface RowVisitor {
+
+    // This method is called once for each row. Return FALSE to stop reading the remaining rows.
+    boolean visit(ResultSet row) throws SQLException;
+}
@@ -0,0 +1,155 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/* TicketTransfer loads tickets and line-ups in bulk (e.g. historical sales, or the data of another box office) and unloads them, in CSV,
+    through the COPY protocol of the driver, so that the rows are streamed instead of being sent by one call per row.
+    (1) Import: the CSV is copied into a staging table (see PROCEDURE beginImport in schema.sql), checked and inserted set-wise by FUNCTION
+        importTickets or importActGigs, and the criteria of the gigs of the rows are checked once at the end (checkDirtyCriteria), in one transaction.
+        Rows which break a rule are not inserted, and are returned as {row, gigID, outcome}, where row counts the data rows of the CSV from 1.
+    (2) Export: the rows are written to the Writer while they are read, in the same columns as the import (with a header).
+    Columns of the CSV:
+        Tickets:   gigID, pricetype, customername, customeremail
+        Line-ups:  gigID, actID, actfee, ontime, duration
+        Gigs:      gigID, venuename, gigtitle, gigdate, gigstatus (export only)*/
+public final class TicketTransfer {
+
+    private TicketTransfer(){
+    }
+
+    /* [Bulk Import: Tickets]: The tickets are booked by the same rules as option 3 (GIG NOT FOUND, PRICETYPE NOT FOUND, NO AVAILABLE SEAT),
+        and the tickets of a full gig are booked in the order of rows. It returns the rejected rows, or null on error (nothing is imported).*/
+    public static String[][] importTickets(Connection conn, Reader csv, boolean header){
+        return importRows(conn, csv, header, "importTickets", "ticket_import", "COPY ticket_import(gigid, pricetype, customername, customeremail) FROM STDIN WITH (FORMAT csv, HEADER " + header + ")");
+    }
+
+    /* [Bulk Import: Line-Ups]: The acts are added to the line-ups of their gigs. A gig which breaks the criteria with its new acts is left as it was,
+        and all its rows are rejected with the breach (e.g. TIME CONFLICT). It returns the rejected rows, or null on error (nothing is imported).*/
+    public static String[][] importActGigs(Connection conn, Reader csv, boolean header){
+        String[][] rejected = importRows(conn, csv, header, "importActGigs", "act_gig_import", "COPY act_gig_import(gigid, actid, actfee, ontime, duration) FROM STDIN WITH (FORMAT csv, HEADER " + header + ")");
+        if(rejected != null){
+            // Any line-up may be changed, so the cached ones are dropped (other JVMs are notified on gig_lineup by the trigger).
+            LineUpCache.invalidateAllGigs();
+        }
+        return rejected;
+    }
+
+    private static String[][] importRows(Connection conn, Reader csv, boolean header, String operation, String stagingTable, String copySQL){
+        GigMetrics.Timer timer = GigMetrics.begin(operation);
+        boolean autoCommit = true;
+        try{
+            // The staging rows are kept until the end of the transaction, so the import runs in one (which is committed here unless the caller opened it).
+            autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+
+            GigSystem.prepare(conn, "CALL beginImport()").execute();
+            CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+            copy.copyIn(copySQL, csv);
+
+            // SQL result: import_row, gigID (as given), outcome (of each rejected row, in the order of rows).
+            ArrayList<String[]> rejected = new ArrayList<>();
+            PreparedStatement importRows = GigSystem.prepare(conn, "SELECT * FROM " + operation + "()");
+            ResultSet getRejected = importRows.executeQuery();
+            while(getRejected.next()){
+                rejected.add(new String[]{getRejected.getString(1), getRejected.getString(2), getRejected.getString(3)});
+                timer.outcome(getRejected.getString(3));
+            }
+            getRejected.close();
+
+            // The single check of the criteria, over the gigs of the staged rows (those touched by the import, and no gig of another session).
+            // It is called directly (not through maintainCheck, which reports its own errors), so a failure rolls the import back.
+            // SQL result: gigIDs of the staged rows (NULL for an invalid row, which is skipped).
+            PreparedStatement getGigIDs = GigSystem.prepare(conn, "SELECT ARRAY(SELECT DISTINCT gig_id FROM " + stagingTable + " WHERE gig_id IS NOT NULL)");
+            ResultSet gigIDs = getGigIDs.executeQuery();
+            gigIDs.next();
+            PreparedStatement checkCriteria = GigSystem.prepare(conn, "CALL checkDirtyCriteria(?)");
+            checkCriteria.setArray(1, gigIDs.getArray(1));
+            gigIDs.close();
+            checkCriteria.execute();
+
+            if(autoCommit){
+                conn.commit();
+            }
+            return rejected.toArray(new String[rejected.size()][]);
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+            rollback(conn, autoCommit);
+        }catch(IOException e){
+            System.err.format("CSV: %s\n", e.getMessage());
+            e.printStackTrace();
+            timer.outcome("ERROR");
+            rollback(conn, autoCommit);
+        }finally{
+            restoreAutoCommit(conn, autoCommit);
+            timer.close();
+        }
+        return null;
+    }
+
+    /* [Bulk Export: Tickets]: Tickets in the order of booking. It returns the amount of rows written, or -1 on error.*/
+    public static long exportTickets(Connection conn, Writer csv){
+        return exportRows(conn, csv, "exportTickets", "COPY (SELECT gigID, pricetype, CustomerName, CustomerEmail FROM ticket ORDER BY ticketid) TO STDOUT WITH (FORMAT csv, HEADER)");
+    }
+
+    /* [Bulk Export: Line-Ups]: Acts of every gig in the order of gigID and ontime. It returns the amount of rows written, or -1 on error.*/
+    public static long exportActGigs(Connection conn, Writer csv){
+        return exportRows(conn, csv, "exportActGigs", "COPY (SELECT gigID, actID, actfee, ontime, duration FROM act_gig ORDER BY gigID, ontime) TO STDOUT WITH (FORMAT csv, HEADER)");
+    }
+
+    /* [Bulk Export: Gigs]: Gigs in the order of gigID. It returns the amount of rows written, or -1 on error.*/
+    public static long exportGigs(Connection conn, Writer csv){
+        return exportRows(conn, csv, "exportGigs", "COPY (SELECT gigID, venuename, gigtitle, gigdate, gigstatus FROM gig JOIN venue USING(venueid) ORDER BY gigID) TO STDOUT WITH (FORMAT csv, HEADER)");
+    }
+
+    private static long exportRows(Connection conn, Writer csv, String operation, String copySQL){
+        GigMetrics.Timer timer = GigMetrics.begin(operation);
+        try{
+            CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+            return copy.copyOut(copySQL, csv);
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            e.printStackTrace();
+            timer.error(e);
+        }catch(IOException e){
+            System.err.format("CSV: %s\n", e.getMessage());
+            e.printStackTrace();
+            timer.outcome("ERROR");
+        }finally{
+            timer.close();
+        }
+        return -1;
+    }
+
+    // The whole import is rolled back on error, unless the transaction belongs to the caller.
+    private static void rollback(Connection conn, boolean autoCommit){
+        if(!autoCommit){
+            return;
+        }
+        try{
+            conn.rollback();
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+        }
+    }
+
+    private static void restoreAutoCommit(Connection conn, boolean autoCommit){
+        try{
+            if(autoCommit && !conn.getAutoCommit()){
+                conn.setAutoCommit(true);
+            }
+        }catch(SQLException e){
+            System.err.format("SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,315 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* GigBenchmark measures every option of GigSystem against a synthetic dataset (see GigDataGenerator) on a local PostgreSQL database
+    (the same connection as GigSystem.getPortConnection), in three parts:
+    (1) Read benchmarks: option 1, 5, 6, 7, 8, the streaming variant of option 6, convertResultToStrings, and maintainCheck (incremental and full).
+    (2) Write benchmarks: option 2, option 3, and option 4 (which cancels gigs, so it runs last).
+    (3) Load test: many threads booking tickets (option3Batch) and cancelling headlines (option4) at the same time through a GigService.
+    Each benchmark is run like a JMH benchmark in a single JVM: some warm-up iterations (so the JIT and the server-side prepared statements are warm),
+    then measured iterations of a fixed time, reporting the throughput (operations per second) and the latency percentiles.
+
+    Usage: java GigBenchmark <scale> <label> [threads] [seconds per iteration] [report file]
+        scale is the power of ten of the amount of tickets (3 to 7), and label names the run (e.g. a commit).
+    Every result is appended to the report file (benchmark-report.tsv by default), and compared with the last run of the same scale in it. */
+public class GigBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private final GigDataGenerator data;
+    private final String label;
+    private final int threads;
+    private final long iterationNanos;
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<>();
+
+    public GigBenchmark(GigDataGenerator data, String label, int threads, double iterationSeconds){
+        this.data = data;
+        this.label = label;
+        this.threads = threads;
+        this.iterationNanos = (long) (iterationSeconds * 1e9);
+    }
+
+    // An operation to measure, given the number of the call (so that each call can use a different gig).
+    @FunctionalInterface
+    interface Operation {
+        void run(long call) throws Exception;
+    }
+
+    // The result of a benchmark: throughput and latency (in milliseconds) of the measured iterations.
+    static final class Result {
+        final int threads;
+        final double opsPerSecond;
+        final double opsError;
+        final double p50;
+        final double p99;
+        final long operations;
+
+        Result(int threads, double[] iterationOps, long[] latencies, int count){
+            this.threads = threads;
+            double sum = 0;
+            for(double ops : iterationOps){
+                sum += ops;
+            }
+            this.opsPerSecond = sum / iterationOps.length;
+            double squares = 0;
+            for(double ops : iterationOps){
+                squares += (ops - opsPerSecond) * (ops - opsPerSecond);
+            }
+            this.opsError = iterationOps.length > 1 ? Math.sqrt(squares / (iterationOps.length - 1)) : 0;
+            Arrays.sort(latencies, 0, count);
+            this.p50 = count == 0 ? 0 : latencies[(int) (count * 0.50)] / 1e6;
+            this.p99 = count == 0 ? 0 : latencies[Math.min(count - 1, (int) (count * 0.99))] / 1e6;
+            this.operations = count;
+        }
+    }
+
+    /* [Part 1: Read benchmarks] */
+    public void runReads(Connection conn){
+        long gigs = data.getGigs();
+        measure("option1", call -> GigSystem.option1(conn, (int) (1 + call % gigs)));
+        measure("option5", call -> GigSystem.option5(conn));
+        measure("option6", call -> GigSystem.option6(conn));
+        measure("option6.stream", call -> GigSystem.option6(conn, row -> true));
+        measure("option7", call -> GigSystem.option7(conn));
+        measure("option8", call -> GigSystem.option8(conn));
+        measure("convertResultToStrings", call -> {
+            // The conversion of the biggest report (option 6) only, as the query is measured by "option6".
+            PreparedStatement statement = GigSystem.prepare(conn, "SELECT * FROM actUnionTicket");
+            ResultSet result = statement.executeQuery();
+            GigSystem.convertResultToStrings(result);
+            result.close();
+        });
+        measure("maintainCheck.dirty", call -> GigSystem.maintainCheck(conn));
+        GigSystem.setFullCheck(true);
+        measure("maintainCheck.full", call -> GigSystem.maintainCheck(conn));
+        GigSystem.setFullCheck(false);
+    }
+
+    /* [Part 2: Write benchmarks] */
+    public void runWrites(Connection conn){
+        long gigs = data.getGigs();
+        long acts = data.getActs();
+        // A new gig of two acts on a date after the generated ones, one day per call, so that it follows the criteria.
+        measure("option2", call -> {
+            LocalDateTime onTime = LocalDateTime.of(2030, 1, 1, 18, 0).plusDays(call);
+            GigSystem.option2(conn, "Venue 1", "Benchmark Gig " + call,
+                new int[]{(int) (1 + call % acts), (int) (1 + (call + 1) % acts)}, new int[]{100, 200},
+                new LocalDateTime[]{onTime, onTime.plusMinutes(70)}, new int[]{60, 60}, 30);
+        });
+        measure("option3", call -> GigSystem.option3(conn, (int) (1 + call % gigs), "Benchmark", "benchmark@example.com", "A"));
+        // Cancelling the headline cancels the gig, so each call takes the next gig from the last one backwards.
+        measure("option4", call -> {
+            long gigID = gigs - call % gigs;
+            GigSystem.option4(conn, (int) gigID, data.headlineActName(gigID));
+        });
+    }
+
+    /* [Part 3: Load test]: each thread books a ticket of a random gig, and one call in every cancelEvery cancels the headline of a random gig.*/
+    public void runLoad(GigService service, int cancelEvery) throws InterruptedException{
+        long gigs = data.getGigs();
+        ConcurrentHashMap<String, AtomicLong> outcomes = new ConcurrentHashMap<>();
+        measureConcurrently("load.booking+cancel", call -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int gigID = (int) (1 + random.nextLong(gigs));
+            if(call % cancelEvery == 0){
+                String[] affected = service.option4(gigID, data.headlineActName(gigID));
+                outcomes.computeIfAbsent(affected == null ? "CANCEL FAILED" : "CANCELLED", k -> new AtomicLong()).incrementAndGet();
+            }else{
+                String[] booked = service.option3Batch(new int[]{gigID}, new String[]{"Load"}, new String[]{"load@example.com"}, new String[]{"A"});
+                outcomes.computeIfAbsent(booked == null ? "BOOKING FAILED" : String.valueOf(booked[0]), k -> new AtomicLong()).incrementAndGet();
+            }
+        });
+        System.out.println("  outcomes: " + outcomes);
+    }
+
+    // This method runs an operation on the calling thread: warm-up iterations, then measured iterations.
+    private void measure(String name, Operation operation){
+        long call = 0;
+        long[] latencies = new long[1024];
+        int count = 0;
+        double[] iterationOps = new double[MEASURED_ITERATIONS];
+        try{
+            for(int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++){
+                boolean measured = iteration >= WARMUP_ITERATIONS;
+                long operations = 0;
+                long start = System.nanoTime();
+                long end = start + iterationNanos;
+                long now = start;
+                while(now < end){
+                    long before = now;
+                    operation.run(call++);
+                    now = System.nanoTime();
+                    operations++;
+                    if(measured){
+                        if(count == latencies.length){
+                            latencies = Arrays.copyOf(latencies, count * 2);
+                        }
+                        latencies[count++] = now - before;
+                    }
+                }
+                if(measured){
+                    iterationOps[iteration - WARMUP_ITERATIONS] = operations / ((now - start) / 1e9);
+                }
+            }
+        }catch(Exception e){
+            System.err.println(name + " failed: " + e);
+            e.printStackTrace();
+            return;
+        }
+        record(name, new Result(1, iterationOps, latencies, count));
+    }
+
+    // This method runs an operation on many threads at the same time for each iteration. The calls are numbered across all threads.
+    private void measureConcurrently(String name, Operation operation) throws InterruptedException{
+        AtomicLong calls = new AtomicLong();
+        ArrayList<long[]> allLatencies = new ArrayList<>();
+        double[] iterationOps = new double[MEASURED_ITERATIONS];
+        for(int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++){
+            boolean measured = iteration >= WARMUP_ITERATIONS;
+            AtomicLong operations = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            long end = start + iterationNanos;
+            for(int t = 0; t < threads; t++){
+                long[][] latencies = {new long[1024]};
+                int[] count = {0};
+                Thread worker = new Thread(() -> {
+                    try{
+                        long now = System.nanoTime();
+                        while(now < end){
+                            long before = now;
+                            operation.run(calls.getAndIncrement());
+                            now = System.nanoTime();
+                            operations.incrementAndGet();
+                            if(count[0] == latencies[0].length){
+                                latencies[0] = Arrays.copyOf(latencies[0], count[0] * 2);
+                            }
+                            latencies[0][count[0]++] = now - before;
+                        }
+                    }catch(Exception e){
+                        System.err.println(name + " failed: " + e);
+                    }finally{
+                        if(measured){
+                            synchronized(allLatencies){
+                                allLatencies.add(Arrays.copyOf(latencies[0], count[0]));
+                            }
+                        }
+                        done.countDown();
+                    }
+                });
+                worker.start();
+            }
+            done.await();
+            if(measured){
+                iterationOps[iteration - WARMUP_ITERATIONS] = operations.get() / ((System.nanoTime() - start) / 1e9);
+            }
+        }
+        int count = 0;
+        for(long[] latencies : allLatencies){
+            count += latencies.length;
+        }
+        long[] latencies = new long[count];
+        int offset = 0;
+        for(long[] part : allLatencies){
+            System.arraycopy(part, 0, latencies, offset, part.length);
+            offset += part.length;
+        }
+        record(name, new Result(threads, iterationOps, latencies, count));
+    }
+
+    private void record(String name, Result result){
+        results.put(name, result);
+        System.out.format("%-26s %3d thread(s) %12.1f +- %8.1f ops/s   p50 %9.3f ms   p99 %9.3f ms%n",
+            name, result.threads, result.opsPerSecond, result.opsError, result.p50, result.p99);
+    }
+
+    /* The report has one line per benchmark: label, tickets, benchmark, threads, ops/s, error, p50 (ms), p99 (ms), operations.
+        Before appending this run, the last run of the same amount of tickets is read from the report and compared with this run.*/
+    public void report(String file) throws IOException{
+        LinkedHashMap<String, Double> previous = new LinkedHashMap<>();
+        String previousLabel = null;
+        try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] columns = line.split("\t");
+                if(columns.length < 5 || columns[0].equals("label") || !columns[1].equals(String.valueOf(data.getTickets()))){
+                    continue;
+                }
+                if(!columns[0].equals(previousLabel)){
+                    previous.clear();
+                    previousLabel = columns[0];
+                }
+                previous.put(columns[2], Double.parseDouble(columns[4]));
+            }
+        }catch(IOException e){
+            // No report yet, so there is nothing to compare with.
+        }
+
+        if(previousLabel != null){
+            System.out.format("%nCompared with \"%s\" (%d tickets):%n", previousLabel, data.getTickets());
+            for(String name : results.keySet()){
+                Double before = previous.get(name);
+                if(before != null && before > 0){
+                    System.out.format("%-26s %12.1f -> %12.1f ops/s  (x%.2f)%n", name, before, results.get(name).opsPerSecond, results.get(name).opsPerSecond / before);
+                }
+            }
+        }
+
+        boolean exists = new java.io.File(file).exists();
+        try(PrintWriter writer = new PrintWriter(new FileWriter(file, true))){
+            if(!exists){
+                writer.println("label\ttickets\tbenchmark\tthreads\tops_per_sec\tops_error\tp50_ms\tp99_ms\toperations");
+            }
+            for(String name : results.keySet()){
+                Result result = results.get(name);
+                writer.format("%s\t%d\t%s\t%d\t%.1f\t%.1f\t%.3f\t%.3f\t%d%n", label, data.getTickets(), name, result.threads,
+                    result.opsPerSecond, result.opsError, result.p50, result.p99, result.operations);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        if(args.length < 2){
+            System.out.println("Usage: java GigBenchmark <scale> <label> [threads] [seconds per iteration] [report file]");
+            return;
+        }
+        GigDataGenerator data = new GigDataGenerator(Integer.parseInt(args[0]));
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        String file = args.length > 4 ? args[4] : "benchmark-report.tsv";
+        GigBenchmark benchmark = new GigBenchmark(data, args[1], threads, seconds);
+
+        Connection conn = GigSystem.getPortConnection();
+        if(conn == null){
+            return;
+        }
+        long start = System.nanoTime();
+        data.generate(conn);
+        System.out.format("Generated %s in %.1f s%n", data, (System.nanoTime() - start) / 1e9);
+
+        benchmark.runReads(conn);
+        benchmark.runWrites(conn);
+        try(GigService service = new GigService(GigSystem::getPortConnection, threads, GigService.DEFAULT_TIMEOUT_MILLIS)){
+            benchmark.runLoad(service, 10);
+        }
+        conn.close();
+        benchmark.report(file);
+    }
+}
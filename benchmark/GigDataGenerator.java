@@ -0,0 +1,121 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/* GigDataGenerator fills the database (created by schema.sql) with a synthetic dataset of a given amount of tickets, e.g. 10^3 to 10^7.
+    Every value is derived from the row number by a fixed formula (no random()), so the same scale always gives the same data and runs are comparable.
+    The sizes of the other tables follow the amount of tickets:
+    (1) gigs: tickets / 100 (at least 10), with 1 to 4 acts and 100 tickets on average each.
+    (2) venues: gigs / 50 (at least 3), with a capacity of 150 to 499, so no gig is overloaded.
+    (3) acts: gigs / 10 (at least 50), so an act is the headline of many gigs over the years.
+    (4) customers: tickets / 20 (at least 100), so customers buy tickets of many gigs (option 7).
+    Every line-up follows the criteria of checkCriteria: the first act starts at the gig date, each act plays 60 minutes with a gap of 10 minutes,
+    and the whole gig ends before midnight. About 5% of gigs are cancelled. */
+public class GigDataGenerator {
+
+    public static final int MIN_SCALE = 3;
+    public static final int MAX_SCALE = 7;
+
+    private final long tickets;
+    private final long gigs;
+    private final long venues;
+    private final long acts;
+    private final long customers;
+
+    // scale is the power of ten of the amount of tickets, e.g. 5 for 100000 tickets.
+    public GigDataGenerator(int scale){
+        if(scale < MIN_SCALE || scale > MAX_SCALE){
+            throw new IllegalArgumentException("scale must be between " + MIN_SCALE + " and " + MAX_SCALE);
+        }
+        this.tickets = (long) Math.pow(10, scale);
+        this.gigs = Math.max(10, tickets / 100);
+        this.venues = Math.max(3, gigs / 50);
+        this.acts = Math.max(50, gigs / 10);
+        this.customers = Math.max(100, tickets / 20);
+    }
+
+    public long getTickets(){
+        return tickets;
+    }
+
+    public long getGigs(){
+        return gigs;
+    }
+
+    public long getVenues(){
+        return venues;
+    }
+
+    public long getActs(){
+        return acts;
+    }
+
+    /* This method replaces all data by the synthetic dataset in one transaction.
+        Triggers are switched off while loading (session_replication_role needs a superuser, as for a restore), and PROCEDURE rebuildReports()
+        then builds TABLE gig_seat and gig_report from the loaded rows in one pass, which is far quicker than keeping them row by row.*/
+    public void generate(Connection conn) throws SQLException{
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try(Statement statement = conn.createStatement()){
+            statement.execute("SET LOCAL session_replication_role = replica");
+            statement.execute("TRUNCATE act, venue, gig, act_gig, gig_ticket, ticket, gig_dirty, gig_seat, gig_report, year_rollup, act_year_rollup, customer_year_rollup RESTART IDENTITY CASCADE");
+
+            statement.execute("INSERT INTO venue (venuename, hirecost, capacity) "
+                + "SELECT 'Venue ' || v, 500 + (v * 7919) % 4500, 150 + (v * 104729) % 350 FROM generate_series(1::bigint, " + venues + ") v");
+
+            statement.execute("INSERT INTO act (actname, genre, members, standardfee) "
+                + "SELECT 'Act ' || a, (ARRAY['Rock', 'Pop', 'Jazz', 'Ska', 'Punk', 'Folk'])[1 + a % 6], 1 + a % 5, 100 + (a * 15485863) % 4900 "
+                + "FROM generate_series(1::bigint, " + acts + ") a");
+
+            // The partitions of gig, act_gig, and ticket for the current and next years are added before the gigs are loaded (older gigs go to the history partitions).
+            statement.execute("CALL addGigPartitions()");
+
+            // Gigs start at 18:00 on one of 8 years of days, so the headlines are spread over years (option 6 and 7).
+            statement.execute("INSERT INTO gig (venueid, gigtitle, gigdate, gigstatus) "
+                + "SELECT 1 + (g * 31) % " + venues + ", 'Gig ' || g, TIMESTAMP '2016-01-01 18:00' + (g % 2920) * INTERVAL '1 day', "
+                + "CASE WHEN g % 20 = 0 THEN 'Cancelled' ELSE 'GoingAhead' END FROM generate_series(1::bigint, " + gigs + ") g");
+
+            // The k-th act of a gig starts (k - 1) * 70 minutes after the gig date. Acts of a gig are distinct as 13 * k differs for k = 1 .. 4 (acts >= 50).
+            statement.execute("INSERT INTO act_gig (actID, gigID, actfee, ontime, duration, gigdate) "
+                + "SELECT 1 + (gigID * 7 + k * 13) % " + acts + ", gigID, 100 + (gigID * k * 2654435761) % 1900, "
+                + "gigdate + (k - 1) * INTERVAL '70 minutes', 60, gigdate "
+                + "FROM gig, generate_series(1, 1 + gigID % 4) k");
+
+            statement.execute("INSERT INTO gig_ticket (gigID, pricetype, cost) "
+                + "SELECT gigID, 'A', 20 + gigID % 30 FROM gig "
+                + "UNION ALL SELECT gigID, 'C', 10 + gigID % 15 FROM gig WHERE gigID % 3 = 0");
+
+            // Tickets are spread evenly over gigs, a third of the tickets of a gig with a 'C' price are of that price.
+            statement.execute("INSERT INTO ticket (gigID, pricetype, cost, CustomerName, CustomerEmail, gigdate) "
+                + "SELECT gig_ticket.gigID, gig_ticket.pricetype, gig_ticket.cost, 'Customer ' || c, 'customer' || c || '@example.com', gig.gigdate "
+                + "FROM generate_series(0::bigint, " + (tickets - 1) + ") t "
+                + "CROSS JOIN LATERAL (SELECT 1 + t % " + gigs + " AS gigID, CASE WHEN (1 + t % " + gigs + ") % 3 = 0 AND t % 3 = 0 THEN 'C' ELSE 'A' END AS pricetype, "
+                + "(t * 48271) % " + customers + " AS c) temp "
+                + "JOIN gig_ticket USING(gigID, pricetype) JOIN gig USING(gigID)");
+
+            statement.execute("SET LOCAL session_replication_role = origin");
+            statement.execute("CALL rebuildReports()");
+            conn.commit();
+        }catch(SQLException e){
+            conn.rollback();
+            throw e;
+        }finally{
+            conn.setAutoCommit(autoCommit);
+        }
+        // Statistics are refreshed so that the planner sees the new sizes from the first benchmark on.
+        try(Statement statement = conn.createStatement()){
+            statement.execute("ANALYZE");
+        }
+    }
+
+    // The headline (last act) of a generated gig, found by the same formula as the line-up above.
+    public String headlineActName(long gigID){
+        long k = 1 + gigID % 4;
+        return "Act " + (1 + (gigID * 7 + k * 13) % acts);
+    }
+
+    @Override
+    public String toString(){
+        return tickets + " tickets, " + gigs + " gigs, " + venues + " venues, " + acts + " acts, " + customers + " customers";
+    }
+}
@@ -0,0 +1,131 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Random;
+
+/* LineUpValidatorCheck compares LineUpValidator.firstViolation with FUNCTION gigViolations (the first breach, as checkCriteria takes it) on random
+    line-ups, on a local PostgreSQL database (the same connection as GigSystem.getPortConnection) created by schema.sql.
+    The line-ups are made to breach the criteria often: acts overlap, leave gaps, play longer than 2 hours, cross midnight, and many start at the
+    same time as another act (the ties of ontime). Each line-up is written as a gig of its own in one transaction, which is rolled back at the end,
+    so the database is left as it was.
+
+    Usage: java LineUpValidatorCheck [line-ups] [seed]
+    Every line-up on which both disagree is printed, and the exit status is the amount of them (at most 100).*/
+public class LineUpValidatorCheck {
+
+    private static final int MAX_ACTS = 6;
+
+    private final Random random;
+
+    public LineUpValidatorCheck(long seed){
+        this.random = new Random(seed);
+    }
+
+    // A random line-up of 1 to MAX_ACTS acts, starting in the evening (so some cross midnight), with an act in three tied with an earlier one.
+    LocalDateTime[] onTimes(int[] durations){
+        LocalDateTime[] onTimes = new LocalDateTime[durations.length];
+        LocalDateTime start = LocalDateTime.of(2031, 1, 1, 18, 0).plusDays(random.nextInt(365)).plusMinutes(random.nextInt(330));
+        for(int x = 0; x < durations.length; x++){
+            durations[x] = random.nextInt(10) == 0 ? 121 + random.nextInt(30) : random.nextInt(4) == 0 ? random.nextInt(3) * 30 : random.nextInt(121);
+            if(x == 0){
+                onTimes[x] = start;
+            }else if(random.nextInt(3) == 0){
+                onTimes[x] = onTimes[random.nextInt(x)];
+            }else{
+                onTimes[x] = onTimes[x - 1].plusMinutes(durations[x - 1] + random.nextInt(36) - 10);
+            }
+        }
+        return onTimes;
+    }
+
+    // SQL result: the first breach of the gig, or null if there is none (the same query as FUNCTION checkCriteria).
+    static String databaseViolation(Connection conn, int venueID, int[] actIDs, LocalDateTime[] onTimes, int[] durations) throws SQLException{
+        int gigID;
+        // The partitions of the gig's year are added first, as the line-ups are beyond those of addGigPartitions (they are rolled back with the rest).
+        try(PreparedStatement addGigYear = conn.prepareStatement("CALL addGigYear(?)")){
+            addGigYear.setInt(1, onTimes[0].getYear());
+            addGigYear.execute();
+        }
+        try(PreparedStatement insertGig = conn.prepareStatement("INSERT INTO gig (venueid, gigtitle, gigdate, gigstatus) VALUES (?, 'LineUpValidatorCheck', ?, 'GoingAhead') RETURNING gigID")){
+            insertGig.setInt(1, venueID);
+            // As in createGig, the gig date is the ontime of the first act given.
+            insertGig.setTimestamp(2, Timestamp.valueOf(onTimes[0]));
+            try(ResultSet gig = insertGig.executeQuery()){
+                gig.next();
+                gigID = gig.getInt(1);
+            }
+        }
+        try(PreparedStatement insertAct = conn.prepareStatement("INSERT INTO act_gig VALUES (?, ?, 0, ?, ?, ?)")){
+            for(int x = 0; x < onTimes.length; x++){
+                insertAct.setInt(1, actIDs[x]);
+                insertAct.setInt(2, gigID);
+                insertAct.setTimestamp(3, Timestamp.valueOf(onTimes[x]));
+                insertAct.setInt(4, durations[x]);
+                insertAct.setTimestamp(5, Timestamp.valueOf(onTimes[0]));
+                insertAct.addBatch();
+            }
+            insertAct.executeBatch();
+        }
+        try(PreparedStatement getViolation = conn.prepareStatement("SELECT violation FROM gigViolations(ARRAY[?], ARRAY[?::TIMESTAMP]) ORDER BY act_rank, violation = 'VENUE OVERLOAD' LIMIT 1")){
+            getViolation.setInt(1, gigID);
+            getViolation.setTimestamp(2, Timestamp.valueOf(onTimes[0]));
+            try(ResultSet violation = getViolation.executeQuery()){
+                return violation.next() ? violation.getString(1) : null;
+            }
+        }
+    }
+
+    // SQL result: the serial ID of a new venue or act, whose name is unique to this run.
+    static int insert(Connection conn, String sql, String name) throws SQLException{
+        try(PreparedStatement insert = conn.prepareStatement(sql)){
+            insert.setString(1, name);
+            try(ResultSet id = insert.executeQuery()){
+                id.next();
+                return id.getInt(1);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        int lineUps = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        LineUpValidatorCheck check = new LineUpValidatorCheck(seed);
+
+        Connection conn = GigSystem.getPortConnection();
+        if(conn == null){
+            return;
+        }
+        conn.setAutoCommit(false);
+        int disagreements = 0;
+        int[] counts = new int[2];
+        try{
+            String suffix = " (check " + seed + ")";
+            int venueID = insert(conn, "INSERT INTO venue VALUES (DEFAULT, ?, 0, 1000) RETURNING venueID", "Check Venue" + suffix);
+            int[] actIDs = new int[MAX_ACTS];
+            for(int x = 0; x < MAX_ACTS; x++){
+                actIDs[x] = insert(conn, "INSERT INTO act VALUES (DEFAULT, ?, 'Check', 1, 0) RETURNING actID", "Check Act " + x + suffix);
+            }
+            for(int n = 0; n < lineUps; n++){
+                int[] durations = new int[1 + check.random.nextInt(MAX_ACTS)];
+                LocalDateTime[] onTimes = check.onTimes(durations);
+                String expected = databaseViolation(conn, venueID, actIDs, onTimes, durations);
+                String actual = LineUpValidator.firstViolation(onTimes, durations);
+                counts[expected == null ? 0 : 1]++;
+                if(expected == null ? actual != null : !expected.equals(actual)){
+                    disagreements++;
+                    System.out.format("gigViolations: %s, LineUpValidator: %s%n  onTimes: %s%n  durations: %s%n", expected, actual, Arrays.toString(onTimes), Arrays.toString(durations));
+                }
+            }
+        }finally{
+            conn.rollback();
+            conn.close();
+        }
+        System.out.format("Seed %d: %d line-ups (%d accepted, %d rejected), %d disagreement(s)%n", seed, lineUps, counts[0], counts[1], disagreements);
+        System.exit(Math.min(disagreements, 100));
+    }
+}
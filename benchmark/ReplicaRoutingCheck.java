@@ -0,0 +1,179 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* ReplicaRoutingCheck runs the reports (option 5 to 8) through a ReplicaRouter against a real primary and replica (e.g. a hot standby of it), and
+    checks where they run and that they return the same rows as on the primary alone:
+    (1) Routed: with a heartbeat running, every report is lent a replica connection.
+    (2) Lag: while the replica does not replay (pg_wal_replay_pause, so the replica URL must be allowed to call it), its lag grows over the bound and
+        every report runs on the primary. Replay is resumed afterwards, and the reports go back to the replica.
+    (3) Down: the replica connection of the router is ended (pg_terminate_backend of its own session) and new ones are refused, as for a replica
+        which has stopped, so the reports fail on the replica or are not lent one, and run on the primary. They go back to the replica once it is up.
+    (4) Transaction: a report inside the caller's transaction runs on the primary, even with a fresh replica.
+    The router has a single replica connection, so the connection ended in (3) is the one the next report is lent. Nothing is written but the heartbeat.
+
+    Usage: java ReplicaRoutingCheck <primary JDBC URL> <replica JDBC URL> [max staleness in ms]
+    The exit status is the amount of failed checks.*/
+public class ReplicaRoutingCheck {
+
+    private static final long CHECK_INTERVAL_MILLIS = 250;
+
+    private final String primaryUrl;
+    private final String replicaUrl;
+    private final long maxStalenessMillis;
+    private final Connection primary;
+    // While set, new replica connections are refused, as by a replica which has stopped.
+    private final AtomicBoolean replicaDown = new AtomicBoolean();
+    private String[] expected;
+    private int failed;
+
+    public ReplicaRoutingCheck(String primaryUrl, String replicaUrl, long maxStalenessMillis) throws SQLException{
+        this.primaryUrl = primaryUrl;
+        this.replicaUrl = replicaUrl;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.primary = DriverManager.getConnection(primaryUrl);
+    }
+
+    Connection openReplica() throws SQLException{
+        if(replicaDown.get()){
+            throw new SQLException("Connection to the replica refused", "08001");
+        }
+        return DriverManager.getConnection(replicaUrl);
+    }
+
+    // The rows of each report, as text, so two runs can be compared.
+    String[] reports(){
+        return new String[]{
+            Arrays.deepToString(GigSystem.option5(primary)),
+            Arrays.deepToString(GigSystem.option6(primary)),
+            Arrays.deepToString(GigSystem.option7(primary)),
+            Arrays.deepToString(GigSystem.option8(primary)),
+            Arrays.deepToString(GigSystem.option8(primary, 1))
+        };
+    }
+
+    // This method runs the reports, and checks that they return the rows of the primary and that the counter of the router moved by all of them.
+    void check(String name, ReplicaRouter router, String event){
+        long routed = router.getRouted();
+        long stale = router.getStale();
+        long failures = router.getFailures();
+        String[] rows = reports();
+        long routedBy = router.getRouted() - routed;
+        long staleBy = router.getStale() - stale;
+        long failuresBy = router.getFailures() - failures;
+        boolean same = Arrays.equals(rows, expected);
+        boolean counted;
+        switch(event){
+            case "routed":
+                counted = routedBy == rows.length && staleBy == 0 && failuresBy == 0;
+                break;
+            case "primary":
+                // A report which is lent the ended connection fails on it, so it is counted as routed and as a failure.
+                counted = failuresBy > 0 && routedBy <= failuresBy;
+                break;
+            case "stale":
+                counted = staleBy == rows.length && routedBy == 0;
+                break;
+            default:
+                counted = routedBy == 0 && staleBy == 0 && failuresBy == 0;
+        }
+        boolean passed = same && counted;
+        if(!passed){
+            failed++;
+        }
+        System.out.format("%-12s %s  rows %s, routed +%d, stale +%d, failures +%d, lag %.0f ms%n",
+            name, passed ? "PASS" : "FAIL", same ? "same" : "DIFFERENT", routedBy, staleBy, failuresBy, router.getLagMillis());
+    }
+
+    // This method waits until the router has read a lag which allows (or does not allow) the replica, or the given time is over.
+    static void awaitLag(ReplicaRouter router, boolean fresh, long bound, long millis) throws InterruptedException{
+        long until = System.currentTimeMillis() + millis;
+        while(System.currentTimeMillis() < until){
+            Connection conn = router.borrow();
+            if(conn != null){
+                router.release(conn);
+            }
+            double lag = router.getLagMillis();
+            if(fresh ? lag <= bound : !(lag <= bound)){
+                return;
+            }
+            Thread.sleep(CHECK_INTERVAL_MILLIS);
+        }
+    }
+
+    void setReplay(boolean paused) throws SQLException{
+        try(Connection replica = DriverManager.getConnection(replicaUrl); Statement statement = replica.createStatement()){
+            statement.execute(paused ? "SELECT pg_wal_replay_pause()" : "SELECT pg_wal_replay_resume()");
+        }
+    }
+
+    int run() throws Exception{
+        GigSystem.setReplicaRouter(null);
+        expected = reports();
+
+        ReplicaRouter router = new ReplicaRouter(this::openReplica, 1, ReplicaRouter.DEFAULT_TIMEOUT_MILLIS, maxStalenessMillis, CHECK_INTERVAL_MILLIS);
+        router.heartbeat(() -> DriverManager.getConnection(primaryUrl));
+        GigSystem.setReplicaRouter(router);
+        try{
+            awaitLag(router, true, maxStalenessMillis, 10 * maxStalenessMillis + 5000);
+            check("routed", router, "routed");
+
+            try{
+                setReplay(true);
+                awaitLag(router, false, maxStalenessMillis, 3 * maxStalenessMillis + 5000);
+                check("lag", router, "stale");
+            }catch(SQLException e){
+                failed++;
+                System.out.format("%-12s FAIL  replay could not be paused: %s%n", "lag", e.getMessage());
+            }finally{
+                setReplay(false);
+            }
+            awaitLag(router, true, maxStalenessMillis, 3 * maxStalenessMillis + 5000);
+            check("caught up", router, "routed");
+
+            replicaDown.set(true);
+            Connection lent = router.borrow();
+            if(lent != null){
+                try(Statement statement = lent.createStatement()){
+                    statement.execute("SELECT pg_terminate_backend(pg_backend_pid())");
+                }catch(SQLException ended){
+                    // The session ends before it answers.
+                }
+                router.release(lent);
+            }
+            check("down", router, "primary");
+            Thread.sleep(2 * CHECK_INTERVAL_MILLIS);
+            check("still down", router, "primary");
+            replicaDown.set(false);
+            awaitLag(router, true, maxStalenessMillis, 3 * maxStalenessMillis + 5000);
+            check("up", router, "routed");
+
+            primary.setAutoCommit(false);
+            try{
+                check("transaction", router, "none");
+            }finally{
+                primary.rollback();
+                primary.setAutoCommit(true);
+            }
+        }finally{
+            GigSystem.setReplicaRouter(null);
+            router.close();
+            primary.close();
+        }
+        System.out.format("%d check(s) failed, %s%n", failed, router);
+        return failed;
+    }
+
+    public static void main(String[] args) throws Exception{
+        if(args.length < 2){
+            System.out.println("Usage: java ReplicaRoutingCheck <primary JDBC URL> <replica JDBC URL> [max staleness in ms]");
+            return;
+        }
+        long maxStalenessMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        System.exit(new ReplicaRoutingCheck(args[0], args[1], maxStalenessMillis).run());
+    }
+}
@@ -0,0 +1,48 @@
+/* Migration of an existing database (created by an earlier schema.sql) to the current keys and indexes of act_gig, gig_ticket, ticket, gig, and act.
+   Run it outside a transaction block (e.g. psql -f migration.sql), as the indexes are built CONCURRENTLY so that bookings are not blocked meanwhile.
+   Rows which break the new keys are reported by the checks below and must be fixed by hand before the keys can be added. */
+
+-- (1) Rows which break the new keys: duplicated act performances, duplicated gig ticket pricetypes, and tickets without a gig ticket of its pricetype.
+SELECT 'act_gig duplicated' AS problem, gigID, actID, ontime::TEXT AS detail, COUNT(*) FROM act_gig GROUP BY gigID, ontime, actID HAVING COUNT(*) > 1
+UNION ALL
+SELECT 'gig_ticket duplicated', gigID, NULL, pricetype, COUNT(*) FROM gig_ticket GROUP BY gigID, pricetype HAVING COUNT(*) > 1
+UNION ALL
+SELECT 'ticket without gig_ticket', ticket.gigID, NULL, ticket.pricetype, COUNT(*) FROM ticket LEFT OUTER JOIN gig_ticket USING(gigID, pricetype) WHERE gig_ticket.gigID IS NULL GROUP BY ticket.gigID, ticket.pricetype;
+
+-- (2) Primary keys: the unique indexes are built without locking the tables, and then taken over by the primary keys.
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS act_gig_pkey ON act_gig(gigID, ontime, actID) INCLUDE (duration, actfee);
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS gig_ticket_pkey ON gig_ticket(gigID, pricetype) INCLUDE (cost);
+ALTER TABLE act_gig ADD CONSTRAINT act_gig_pkey PRIMARY KEY USING INDEX act_gig_pkey;
+ALTER TABLE gig_ticket ADD CONSTRAINT gig_ticket_pkey PRIMARY KEY USING INDEX gig_ticket_pkey;
+
+-- (3) Indexes for the access paths which are not led by a primary key.
+CREATE INDEX CONCURRENTLY IF NOT EXISTS act_gig_actid_idx ON act_gig(actID, gigID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ticket_gigid_idx ON ticket(gigID, pricetype) INCLUDE (cost);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS gig_venueid_idx ON gig(venueid);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS act_actname_idx ON act(actname);
+
+-- (4) Foreign keys: NOT VALID adds them at once for new rows, and VALIDATE checks the existing rows without blocking writes.
+ALTER TABLE gig ADD CONSTRAINT gig_venueid_fkey FOREIGN KEY (venueid) REFERENCES venue(venueid) NOT VALID;
+ALTER TABLE ticket ADD CONSTRAINT ticket_gigid_fkey FOREIGN KEY (gigID) REFERENCES gig(gigID) NOT VALID;
+ALTER TABLE ticket ADD CONSTRAINT ticket_gigid_pricetype_fkey FOREIGN KEY (gigID, pricetype) REFERENCES gig_ticket(gigID, pricetype) NOT VALID;
+ALTER TABLE gig VALIDATE CONSTRAINT gig_venueid_fkey;
+ALTER TABLE ticket VALIDATE CONSTRAINT ticket_gigid_fkey;
+ALTER TABLE ticket VALIDATE CONSTRAINT ticket_gigid_pricetype_fkey;
+
+ANALYZE act_gig;
+ANALYZE gig_ticket;
+ANALYZE ticket;
+ANALYZE gig;
+ANALYZE act;
+
+/* (5) The partitioning of gig, act_gig, and ticket by the gig date (see [Partitioning] in schema.sql) cannot be added to the existing tables in place,
+   as a table cannot be turned into a partitioned one, and act_gig, ticket, gig_seat, and gig_report now carry the gig date. Dump the data
+   (pg_dump --data-only) into a scratch schema, run schema.sql, CALL addGigYear(year) for each year of a gig after the partitions of addGigPartitions,
+   and restore the rows with the date of their gig, e.g. INSERT INTO ticket SELECT old.*, gig.gigdate FROM old_ticket old JOIN gig USING(gigID)
+   (gig_seat and gig_report are filled by CALL rebuildReports()). Then CALL rollupClosedYears() (outside a transaction block). */
+
+/* (6) TABLE gig_report also keeps the headline and the time span of each gig (first_ontime, last_offtime), and the views of option 6 and 7 read it by
+   gigID. As these views change their column types, they are created by schema.sql along with the partitioning, so the same steps as (5) apply. */
+
+/* (7) TABLE gig_report also tells which gigs are cancelled (for the average ticket price of option 8). It is created by schema.sql, and filled by
+   CALL rebuildReports() after the data is restored, as in (5). */
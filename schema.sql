@@ -4,6 +4,13 @@ DROP TABLE IF EXISTS act_gig CASCADE;
 DROP TABLE IF EXISTS venue CASCADE;
 DROP TABLE IF EXISTS gig_ticket CASCADE;
 DROP TABLE IF EXISTS ticket CASCADE;
+DROP TABLE IF EXISTS gig_dirty CASCADE;
+DROP TABLE IF EXISTS gig_seat CASCADE;
+DROP TABLE IF EXISTS gig_report CASCADE;
+DROP TABLE IF EXISTS year_rollup CASCADE;
+DROP TABLE IF EXISTS act_year_rollup CASCADE;
+DROP TABLE IF EXISTS customer_year_rollup CASCADE;
+DROP TABLE IF EXISTS replica_heartbeat CASCADE;
 
 CREATE TABLE act(
     actID SERIAL NOT NULL PRIMARY KEY,
@@ -13,44 +20,213 @@ CREATE TABLE act(
     standardfee INTEGER NOT NULL CHECK (standardfee >= 0)
 );
 
+-- TABLE venue is created before TABLE gig as gig references it.
+CREATE TABLE venue(
+    venueid SERIAL NOT NULL PRIMARY KEY,
+    venuename VARCHAR(100) NOT NULL,
+    hirecost INTEGER NOT NULL CHECK (hirecost >= 0),
+    capacity INTEGER NOT NULL CHECK (capacity >= 0)
+);
+
+-- It is partitioned by gigdate (see [Partitioning] below), so the primary key includes gigdate as well, while gigID alone is still given by its sequence.
 CREATE TABLE gig (
-    gigID SERIAL NOT NULL PRIMARY KEY,
-    venueid INTEGER NOT NULL,
+    gigID SERIAL NOT NULL,
+    venueid INTEGER NOT NULL REFERENCES venue(venueid),
     gigtitle VARCHAR(100) NOT NULL,
     gigdate TIMESTAMP NOT NULL,
-    gigstatus VARCHAR(10) NOT NULL
+    gigstatus VARCHAR(10) NOT NULL,
+    PRIMARY KEY (gigID, gigdate)
+) PARTITION BY RANGE (gigdate);
+
+-- TABLE gig_seat keeps the amount of tickets sold of each gig, so that booking a ticket does not count all tickets of the gig.
+-- It is kept by triggers on TABLE gig and ticket (see [Option 3 Booking a Ticket]).
+-- As it has a row for each gig, gigID is its primary key on its own, and it is what the tables without the gig date (gig_ticket) reference.
+CREATE TABLE gig_seat(
+    gigID INTEGER NOT NULL PRIMARY KEY,
+    gigdate TIMESTAMP NOT NULL,
+    sold INTEGER NOT NULL CHECK (sold >= 0),
+    FOREIGN KEY (gigID, gigdate) REFERENCES gig(gigID, gigdate) ON DELETE CASCADE ON UPDATE CASCADE
 );
 
--- Notice that here is no primary key as actID, gigID, actfee, ontime, and duration are not supposed to be unique.
+-- Notice that actID, gigID, actfee, ontime, and duration are not unique on their own, while an act cannot start twice at the same time in a gig.
+-- The primary key is led by gigID and ontime, which is exactly how a line-up is read (option 1, the headline, and the criteria check), and the
+-- remaining columns are included so that these reads never visit the table.
+-- It is partitioned by gigdate, the date of its gig (see [Partitioning] below), which is therefore part of its primary key and of its reference to TABLE gig.
 CREATE TABLE act_gig(
     actID INTEGER NOT NULL REFERENCES act(actID),
-    gigID INTEGER NOT NULL REFERENCES gig(gigID),
+    gigID INTEGER NOT NULL,
     actfee INTEGER NOT NULL CHECK (actfee >= 0),
     ontime TIMESTAMP NOT NULL,
-    duration INTEGER NOT NULL CHECK (duration >= 0)
-);
-
-CREATE TABLE venue(
-    venueid SERIAL NOT NULL PRIMARY KEY,
-    venuename VARCHAR(100) NOT NULL,
-    hirecost INTEGER NOT NULL CHECK (hirecost >= 0),
-    capacity INTEGER NOT NULL CHECK (capacity >= 0)
-);
+    duration INTEGER NOT NULL CHECK (duration >= 0),
+    gigdate TIMESTAMP NOT NULL,
+    FOREIGN KEY (gigID, gigdate) REFERENCES gig(gigID, gigdate) ON UPDATE CASCADE,
+    PRIMARY KEY (gigID, ontime, actID, gigdate) INCLUDE (duration, actfee)
+) PARTITION BY RANGE (gigdate);
 
--- Notice that here is no primary key as gigID, pricetype, and cost are not supposed to be unique.
+-- Notice that a gig has only one cost for a pricetype, so gigID and pricetype are the primary key. The cost is included for the price lookup of a booking.
 CREATE TABLE gig_ticket(
-    gigID INTEGER NOT NULL REFERENCES gig(gigID),
+    gigID INTEGER NOT NULL REFERENCES gig_seat(gigID),
     pricetype VARCHAR(2) NOT NULL,
-    cost INTEGER NOT NULL CHECK (cost >= 0)
+    cost INTEGER NOT NULL CHECK (cost >= 0),
+    PRIMARY KEY (gigID, pricetype) INCLUDE (cost)
 );
 
+-- A ticket must be of a pricetype of its gig, which also makes sure that its gig exists.
+-- It is partitioned by gigdate, the date of its gig (see [Partitioning] below), so the primary key includes gigdate as well. ticketid alone is given
+-- by its sequence, and a unique index on ticketid in each partition (added along with the partition) keeps it unique within the partition.
 CREATE TABLE ticket(
-    ticketid SERIAL NOT NULL PRIMARY KEY,
+    ticketid SERIAL NOT NULL,
     gigID INTEGER NOT NULL,
     pricetype VARCHAR(2) NOT NULL,
     cost INTEGER NOT NULL CHECK (cost >= 0),
     CustomerName VARCHAR(100) NOT NULL,
-    CustomerEmail VARCHAR(100) NOT NULL
+    CustomerEmail VARCHAR(100) NOT NULL,
+    gigdate TIMESTAMP NOT NULL,
+    FOREIGN KEY (gigID, gigdate) REFERENCES gig(gigID, gigdate) ON UPDATE CASCADE,
+    FOREIGN KEY (gigID, pricetype) REFERENCES gig_ticket(gigID, pricetype),
+    PRIMARY KEY (ticketid, gigdate)
+) PARTITION BY RANGE (gigdate);
+
+/* Indexes for the access paths which are not led by a primary key:
+(1) act_gig by actID: finding an act in a gig (option 4) and the reference to TABLE act.
+(2) ticket by gigID: counting and summing tickets of a gig (criteria check, option 5, 6, and 7), and the reference to TABLE gig_ticket.
+(3) gig by venueid: gigs of a venue (capacity change) and the reference to TABLE venue.
+(4) act by actname: finding an act by its name (option 4).
+(5) act by standardfee: acts which are cheap enough for a venue (option 8).*/
+CREATE INDEX act_gig_actid_idx ON act_gig(actID, gigID);
+CREATE INDEX ticket_gigid_idx ON ticket(gigID, pricetype) INCLUDE (cost);
+CREATE INDEX gig_venueid_idx ON gig(venueid);
+CREATE INDEX act_actname_idx ON act(actname);
+CREATE INDEX act_standardfee_idx ON act(standardfee) INCLUDE (actname);
+
+/* [Partitioning]: TABLE gig, act_gig, and ticket grow without bound, so they are partitioned by the gig date: one partition per year (e.g. gig_2027,
+   act_gig_2027, and ticket_2027), and a history partition of each (e.g. gig_history) for every gig before the year the schema is created in.
+   The gig date is carried into act_gig and ticket as part of their keys and of their reference to gig (a gig, its acts, and its tickets are always in
+   the partitions of the same year), so:
+   (1) a query by date, e.g. the current and upcoming gigs (gigdate >= LOCALTIMESTAMP), is pruned to the partitions of the current and later years, and
+       a join of gig with act_gig or ticket USING(gigID, gigdate) prunes the partitions of the other side as well, at run time;
+   (2) the rows of past years stay in their own partitions (which can be moved or detached for archival), and the reports of closed years are spared
+       them by the rollup (see [Closed Year Rollup] below);
+   (3) a read by gigID alone (e.g. option 1 and the triggers) probes the gigID index of each partition, one per year, instead of a single one, so the
+       hot paths (booking, cancelling, and the criteria check) read the gig date from TABLE gig_seat by gigID first and then the gig's year only.
+   There is no DEFAULT partition, so that rows never have to be moved out of it (which would scan it under lock): a partition is always created empty
+   and then attached, which only scans the new table. Attaching still locks the tables which the new partitions reference (gig, gig_ticket, venue,
+   and act) in SHARE ROW EXCLUSIVE mode until commit, so their writes (e.g. setting up a gig) wait meanwhile, while reads and bookings do not.
+   The partitions of a year are created ahead of time by PROCEDURE addGigPartitions (e.g. by a nightly job), and by PROCEDURE addGigYear when a gig is
+   set up (option 2) in a year beyond them. A write of a gig beyond the partitions by other means (e.g. a restore) needs CALL addGigYear(year) first.*/
+DO $$
+DECLARE
+    parent TEXT;
+BEGIN
+    FOREACH parent IN ARRAY ARRAY['gig', 'act_gig', 'ticket'] LOOP
+        EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (MINVALUE) TO (%L)', parent || '_history', parent, date_trunc('year', LOCALTIMESTAMP));
+    END LOOP;
+END
+$$;
+CREATE UNIQUE INDEX ticket_history_ticketid_idx ON ticket_history(ticketid);
+
+/* PROCEDURE addGigYear adds the partitions of gig, act_gig, and ticket for the gigs of gig_year, unless the year has them or is in the history
+   partitions already. Each partition is created on its own (with the unique index on ticketid for ticket) and then attached (see the locks in
+   [Partitioning] above). Two sessions adding the same year are serialised by an advisory lock (keyed by TABLE gig and the year),
+   so the second one finds it added.*/
+CREATE OR REPLACE PROCEDURE addGigYear(gig_year INTEGER)
+LANGUAGE plpgsql AS $$
+DECLARE
+    parent TEXT;
+    partition_name TEXT;
+    history_end TIMESTAMP;
+BEGIN
+    IF to_regclass(format('gig_%s', gig_year)) IS NOT NULL THEN
+        RETURN;
+    END IF;
+--     The history partition is the only one from MINVALUE, and it ends where the first yearly partition may start.
+    SELECT substring(pg_get_expr(relpartbound, oid) FROM 'TO \(''([^'']+)''\)')::TIMESTAMP INTO history_end FROM pg_class WHERE oid = 'gig_history'::regclass;
+    IF make_timestamp(gig_year, 1, 1, 0, 0, 0) < history_end THEN
+        RETURN;
+    END IF;
+    PERFORM pg_advisory_xact_lock('gig'::regclass::oid::INTEGER, gig_year);
+    IF to_regclass(format('gig_%s', gig_year)) IS NOT NULL THEN
+        RETURN;
+    END IF;
+    FOREACH parent IN ARRAY ARRAY['gig', 'act_gig', 'ticket'] LOOP
+        partition_name := format('%s_%s', parent, gig_year);
+        EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', partition_name, parent);
+        IF parent = 'ticket' THEN
+            EXECUTE format('CREATE UNIQUE INDEX %I ON %I(ticketid)', partition_name || '_ticketid_idx', partition_name);
+        END IF;
+        EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', parent, partition_name,
+            make_timestamp(gig_year, 1, 1, 0, 0, 0), make_timestamp(gig_year + 1, 1, 1, 0, 0, 0));
+    END LOOP;
+END
+$$;
+
+/* PROCEDURE addGigPartitions adds the partitions of the current year and of spare_years years after it, so that they are created ahead of time
+   (e.g. by a nightly job) instead of by the set-up of a gig.*/
+-- The partitions by ranges of gigID (gigs_per_partition gigs each) are replaced by years, so the procedure which added them is dropped.
+DROP PROCEDURE IF EXISTS addGigPartitions(INTEGER, INTEGER);
+CREATE OR REPLACE PROCEDURE addGigPartitions(spare_years INTEGER DEFAULT 2)
+LANGUAGE plpgsql AS $$
+DECLARE
+    current_year INTEGER := date_part('year', LOCALTIMESTAMP);
+BEGIN
+    FOR gig_year IN current_year .. current_year + spare_years LOOP
+        CALL addGigYear(gig_year);
+    END LOOP;
+END
+$$;
+
+CALL addGigPartitions();
+
+-- TABLE gig_dirty lists gigs which have been touched (by changes of gig, act_gig, or ticket) since the last check, so that only these gigs need checking again.
+-- There is no reference to TABLE gig as a deleted gig is also "touched".
+CREATE TABLE gig_dirty(
+    gigID INTEGER NOT NULL PRIMARY KEY
+);
+
+-- TABLE gig_report keeps the aggregates of each gig which option 5 and 6 need, so that reports do not rescan TABLE act_gig and ticket.
+-- It is kept by triggers on TABLE gig, act_gig, and ticket (see [Option 5: Tickets Needed to Sell]), while PROCEDURE rebuildReports() rebuilds it from scratch.
+-- It is also the headline of each gig, read by gigID wherever a headline is needed (option 4, 6, and 7) instead of being searched for in TABLE act_gig:
+-- headline_actid is the act with the latest ontime of the gig (the larger actID if two start together), headline_year is the year of its ontime (the year
+-- of the gig in option 6 and 7), first_ontime is when the first act starts, and last_offtime is when the last act ends (all are NULL if the gig has no act).
+-- cancelled tells whether the gig is cancelled (kept by FUNCTION reportGigStatus), so that the average ticket price of option 8 is read from gig_report
+-- and gig_seat alone. gigdate is the date of the gig, which its reference to TABLE gig needs (see [Partitioning]).
+CREATE TABLE gig_report(
+    gigID INTEGER NOT NULL PRIMARY KEY,
+    gigdate TIMESTAMP NOT NULL,
+    act_count INTEGER NOT NULL,
+    total_act_fee BIGINT NOT NULL,
+    total_ticket_income BIGINT NOT NULL,
+    headline_actid INTEGER,
+    headline_year INTEGER,
+    first_ontime TIMESTAMP,
+    last_offtime TIMESTAMP,
+    cancelled BOOLEAN NOT NULL,
+    FOREIGN KEY (gigID, gigdate) REFERENCES gig(gigID, gigdate) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+/* The closed years (years before the current one) are rolled up by PROCEDURE rollupClosedYears (see [Closed Year Rollup]), so that option 6 and 7 read
+   one row per act and year (and customer) for them instead of every gig and ticket:
+(1) TABLE year_rollup lists the years which are rolled up. A year is removed as soon as a gig of that year is changed, and read from the raw rows again.
+(2) TABLE act_year_rollup keeps the tickets sold of each headline act in each year (option 6).
+(3) TABLE customer_year_rollup keeps the tickets a customer buys of each headline act in each year (option 7).*/
+CREATE TABLE year_rollup(
+    year INTEGER NOT NULL PRIMARY KEY
+);
+
+CREATE TABLE act_year_rollup(
+    actID INTEGER NOT NULL,
+    year INTEGER NOT NULL,
+    ticket_sold BIGINT NOT NULL,
+    PRIMARY KEY (year, actID)
+);
+
+CREATE TABLE customer_year_rollup(
+    actname VARCHAR(100) NOT NULL,
+    year INTEGER NOT NULL,
+    customername VARCHAR(100) NOT NULL,
+    customeremail VARCHAR(100) NOT NULL,
+    ticket_count BIGINT NOT NULL,
+    PRIMARY KEY (year, actname, customername, customeremail)
 );
 
 
@@ -61,6 +237,38 @@ CREATE VIEW gigTimeTable AS SELECT actname, gigID, ontime, ontime + duration * i
 -- To keep ontime's time part, use to_char(ontime, 'HH24:MI:SS').
 CREATE view option1 AS SELECT actname, gigID, to_char(ontime,'HH24:MI:SS') as ontime, to_char(offtime,'HH24:MI:SS') as offtime FROM gigTimeTable;
 
+/* A line-up read by option 1 may be cached by the application (see LineUpCache.java). Whenever a line-up changes, the gigID is sent on the channel
+   gig_lineup (NOTIFY), so that every cache drops it. Notifications are only delivered when the transaction commits, and once for the same gigID.*/
+-- FUNCTION notifyLineUp is a statement trigger function which notifies every gig whose acts are inserted, updated, or deleted.
+CREATE OR REPLACE FUNCTION notifyLineUp()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM pg_notify('gig_lineup', gigID::TEXT) FROM (SELECT DISTINCT gigID FROM oldActGig) changed;
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        PERFORM pg_notify('gig_lineup', gigID::TEXT) FROM (SELECT DISTINCT gigID FROM newActGig) changed;
+    END IF;
+    RETURN NULL;
+END
+$$;
+
+-- FUNCTION notifyActName is a trigger function which notifies every gig of an act whose name is changed, as option 1 shows the actname.
+CREATE OR REPLACE FUNCTION notifyActName()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    PERFORM pg_notify('gig_lineup', gigID::TEXT) FROM (SELECT DISTINCT gigID FROM act_gig WHERE actID = NEW.actID) changed;
+    RETURN NULL;
+END
+$$;
+
+CREATE TRIGGER actGigLineUpInsert AFTER INSERT ON act_gig REFERENCING NEW TABLE AS newActGig FOR EACH STATEMENT EXECUTE FUNCTION notifyLineUp();
+CREATE TRIGGER actGigLineUpUpdate AFTER UPDATE ON act_gig REFERENCING OLD TABLE AS oldActGig NEW TABLE AS newActGig FOR EACH STATEMENT EXECUTE FUNCTION notifyLineUp();
+CREATE TRIGGER actGigLineUpDelete AFTER DELETE ON act_gig REFERENCING OLD TABLE AS oldActGig FOR EACH STATEMENT EXECUTE FUNCTION notifyLineUp();
+CREATE TRIGGER actLineUp AFTER UPDATE OF actname ON act FOR EACH ROW WHEN (OLD.actname IS DISTINCT FROM NEW.actname) EXECUTE FUNCTION notifyActName();
+
 
 /* [Option 2: Organising a Gig]: This option is to create a new gig.*/
 /* PROCEDURE insergGig insert a gig's information into TABLE gig with venue's name, gig's title and gigdate.*/
@@ -71,22 +279,24 @@ DECLARE
 BEGIN
 --     Retrieve venue's ID from its name.
     SELECT venueid INTO venue_id FROM venue WHERE venuename = venue_name;
+--     The partitions of the gig's year are added if it is beyond them (see [Partitioning]).
+    CALL addGigYear(date_part('year', on_time)::INTEGER);
 --     Insert process.
     INSERT INTO gig VALUES (DEFAULT, venue_id, gig_title, on_time, 'GoingAhead');
 END
 $$;
 
-/* FUNCTION setupGig call PROCEDURE insertGig to insert a new gig into gig table and meanwhile return its serial ID.*/
+/* FUNCTION setupGig inserts a new gig into gig table and meanwhile return its serial ID (by RETURNING, instead of searching the gig again).*/
 CREATE OR REPLACE FUNCTION setupGig(venue_name VARCHAR(100), gig_title VARCHAR(100), on_time TIMESTAMP)
 RETURNS INTEGER
 LANGUAGE plpgsql AS $$
 DECLARE
     gig_id INTEGER;
 BEGIN
---     Call PROCEDURE insertGig to do the insertation process.
-    CALL insertGig(venue_name, gig_title, on_time);
---     Select and return the newly generated serial ID for the inserted gig.
-    SELECT gigID INTO gig_id FROM gig JOIN venue USING(venueid) WHERE gigtitle = gig_title AND gigdate = on_time AND venuename = venue_name;
+--     The partitions of the gig's year are added if it is beyond them (see [Partitioning]).
+    CALL addGigYear(date_part('year', on_time)::INTEGER);
+--     Insert process with venue's ID retrieved from its name, and return the newly generated serial ID for the inserted gig.
+    INSERT INTO gig (venueid, gigtitle, gigdate, gigstatus) SELECT venueid, gig_title, on_time, 'GoingAhead' FROM venue WHERE venuename = venue_name RETURNING gigID INTO gig_id;
     RETURN gig_id;
 END
 $$;
@@ -100,15 +310,71 @@ BEGIN
 END
 $$;
 
-/* PROCEDURE insertActGig insert act's performance information into TABLE act_gig.*/
+/* PROCEDURE insertActGig insert act's performance information into TABLE act_gig, along with the date of its gig (from TABLE gig_seat).*/
 CREATE OR REPLACE PROCEDURE insertActGig(act_id INTEGER, gig_id INTEGER, act_fee INTEGER, on_time TIMESTAMP, act_duration INTEGER)
 LANGUAGE plpgsql AS $$
 DECLARE
 BEGIN
-    INSERT INTO act_gig VALUES (act_id, gig_id, act_fee, on_time, act_duration);
+    INSERT INTO act_gig VALUES (act_id, gig_id, act_fee, on_time, act_duration, (SELECT gigdate FROM gig_seat WHERE gigID = gig_id));
+END
+$$;
+
+/* FUNCTION createGig sets up a gig, its adult ticket, and its whole line-up (the x-th act is made of the x-th element of each array) in one call, and returns the gig's serial ID.
+   According to instruction, gigdate is set to the first ontime.*/
+CREATE OR REPLACE FUNCTION createGig(venue_name VARCHAR(100), gig_title VARCHAR(100), adult_ticket_price INTEGER, act_ids INTEGER[], act_fees INTEGER[], on_times TIMESTAMP[], act_durations INTEGER[])
+RETURNS INTEGER
+LANGUAGE plpgsql AS $$
+DECLARE
+    gig_id INTEGER;
+BEGIN
+    gig_id := setupGig(venue_name, gig_title, on_times[1]);
+--     The inserted ticket pricetype is "A" (Adult ticket).
+    CALL insertGigTicket(gig_id, 'A', adult_ticket_price);
+--     UNNEST turns the arrays into rows of act's performance information, so the line-up is inserted by one statement (the gig date is on_times[1]).
+    INSERT INTO act_gig SELECT act_id, gig_id, act_fee, on_time, act_duration, on_times[1] FROM UNNEST(act_ids, act_fees, on_times, act_durations) AS lineUp(act_id, act_fee, on_time, act_duration);
+    RETURN gig_id;
 END
 $$;
 
+/* FUNCTION gigViolations lists the criteria breaches of the given gigs (or of all gigs if gig_ids is NULL) in a single query, without creating any view.
+   Each row is a gigID, the rank of the act (in an order of ontime) where the breach is found, and the breach (violation code).
+   Acts starting at the same time are ranked shortest first (then by actID), so the first breach of a gig is always the same, and the same as LineUpValidator.
+   LAG(offtime, 1, gigdate) is to retrieve the previous performance's offtime, or the gig date for the first performance (the same as COALESCE(previous, gig_date)).
+   VENUE OVERLOAD is given the rank of the first act, as it is checked right after the first act (and only for gigs which have an act).
+   The gigs are found in TABLE gig_seat, which gives the gig date by gigID, so that only the partitions of their years are read (see [Partitioning]).
+   gig_dates (if given) are the dates of the gigs, so that the partitions of other years are pruned when the query is planned rather than when it runs;
+   with NULL every partition is planned, which costs more than the check of a single gig itself.*/
+-- The check without gig dates is dropped, as the one with them (which may be NULL) replaces it.
+DROP FUNCTION IF EXISTS gigViolations(INTEGER[]);
+CREATE OR REPLACE FUNCTION gigViolations(gig_ids INTEGER[], gig_dates TIMESTAMP[] DEFAULT NULL)
+RETURNS TABLE(gigid INTEGER, act_rank BIGINT, violation TEXT)
+LANGUAGE sql STABLE AS $$
+    SELECT gigid, act_rank, violation FROM (
+        SELECT gigid, act_rank,
+            CASE
+--                 (1) TIME CONFLICT: act's performance overlaps or act starts before the gig date.
+                WHEN ontime < previous THEN 'TIME CONFLICT'
+--                 (2) TIME INTERVAL TOO LONG: act's performance gap is larger than 20 minutes or the first act starts 20 minutes later than the gig date.
+                WHEN ontime - previous > INTERVAL '20 minutes' THEN 'TIME INTERVAL TOO LARGE'
+--                 (3) ACT OVERTIME: an act plays longer than 2 hours.
+                WHEN duration > 120 THEN 'ACT OVERTIME'
+--                 (4) DATE CROSSED: acts in a given gig plays on different date (which means crossing the midnight).
+                WHEN ontime::date <> offtime::date THEN 'DATE CROSSED'
+            END AS violation
+        FROM (SELECT gigid, ontime, ontime + duration * INTERVAL '1 minute' AS offtime, duration,
+                ROW_NUMBER() OVER(PARTITION BY gigid ORDER BY ontime, duration, actID) AS act_rank,
+                LAG(ontime + duration * INTERVAL '1 minute', 1, gigdate) OVER(PARTITION BY gigid ORDER BY ontime, duration, actID) AS previous
+            FROM gig_seat JOIN act_gig USING(gigid, gigdate)
+            WHERE (gig_ids IS NULL OR gigid = ANY(gig_ids)) AND (gig_dates IS NULL OR act_gig.gigdate = ANY(gig_dates))) actgigTimeTable
+        UNION ALL
+--         (5) VENUE OVERLOAD: the ticket sold (kept in TABLE gig_seat) is greater than the venue capacity.
+        SELECT gigid, 1, 'VENUE OVERLOAD' FROM gig_seat JOIN gig USING(gigid, gigdate) JOIN venue USING(venueid)
+        WHERE (gig_ids IS NULL OR gigid = ANY(gig_ids)) AND (gig_dates IS NULL OR gig.gigdate = ANY(gig_dates))
+            AND EXISTS (SELECT 1 FROM act_gig WHERE act_gig.gigid = gig.gigid AND act_gig.gigdate = gig.gigdate AND (gig_dates IS NULL OR act_gig.gigdate = ANY(gig_dates)))
+            AND capacity < sold
+    ) violations WHERE violation IS NOT NULL
+$$;
+
 /* Check whether the inserted gig follow the criteria including:
 (0)* GIG NOT FOUND: gig is not found with the given ID. However, it does not necessarily mean the data in the database is illegal (could be user's wrong input of gigID).
 (1) TIME CONFLICT: act's performance overlaps or act starts before the gig date.
@@ -121,109 +387,246 @@ CREATE OR REPLACE FUNCTION checkCriteria(gig_id INTEGER)
 RETURNS BOOLEAN
 LANGUAGE plpgsql AS $$
 DECLARE
-    table_rank INTEGER;
-    act_name VARCHAR(100);
-    gig_date timestamp;
-    venue_capacity INTEGER;
-    current_order INTEGER;
+    gig_violation TEXT;
+    gig_date TIMESTAMP;
 BEGIN
 --     (0)* GIG NOT FOUND: gig is not found with the given ID. However, it does not necessarily mean the data in the database is illegal (could be user's wrong input of gigID).
-    SELECT gigdate INTO gig_date FROM gig WHERE gigid = gig_id;
+    SELECT gigdate INTO gig_date FROM gig_seat WHERE gigid = gig_id;
     IF NOT FOUND THEN
         RAISE NOTICE 'GIG NOT FOUND';
         RETURN FALSE;
     END IF;
-    
-    /* Create a table to list actname, gigID, ontime, offtime, duration, previous act's offtime (or gigdate), next act's ontime */
-    DROP VIEW IF EXISTS actTimeTable, actgigTimeTable CASCADE;
---     LAG(offtime, 1) is to retrieve the previous performance's offtime, while LEAD(ontime, 1) is to retrieve the next performance's ontime.
-    EXECUTE 'CREATE VIEW actTimeTable AS select ROW_NUMBER() OVER(ORDER BY ontime) AS rank, actname, gigid, ontime, offtime, duration, lag(offtime, 1) over(order by ontime) as previous, lead(ontime, 1) over(order by ontime) as next from gigTimeTable where gigid = ' || gig_id;
---     COALESCE(previous, gig_date) is to set the previous performance's offtime as the gig date.
-    EXECUTE 'CREATE VIEW actgigTimeTable AS SELECT rank, actname, gigid, ontime, offtime, duration, COALESCE(previous, ' || '''' || gig_date || '''' || ') as previous, next from actTimeTable';
-    
-    /* Check Process */
-    FOR table_rank IN SELECT rank FROM actgigTimeTable LOOP
-        SELECT actname INTO act_name FROM actgigTimeTable WHERE rank = table_rank;
---         (1) TIME CONFLICT: act's performance overlaps or act starts before the gig date.
-        IF  ontime < previous FROM actgigTimeTable WHERE rank = table_rank THEN RAISE NOTICE 'GIG %: TIME CONFLICT', $1; RETURN TRUE; END IF; 
-        
---         (2) TIME INTERVAL TOO LONG: act's performance gap is larger than 20 minutes or the first act starts 20 minutes later than the gig date.
-        IF  ontime - previous > INTERVAL '20 minutes' FROM actgigTimeTable WHERE rank = table_rank THEN RAISE NOTICE 'GIG %: TIME INTERVAL TOO LARGE', $1; RETURN TRUE; END IF;
-        
---         (3) ACT OVERTIME: an act plays longer than 2 hours.
-        IF  duration > 120 FROM actgigTimeTable WHERE rank = table_rank THEN RAISE NOTICE 'GIG %: ACT OVERTIME', $1; RETURN TRUE; END IF;
-        
---         (4) DATE CROSSED: acts in a given gig plays on different date (which means crossing the midnight).
-        IF  to_char(ontime, 'yyyy-mm-dd') <> to_char(offtime, 'yyyy-mm-dd') FROM actgigTimeTable WHERE rank = table_rank THEN RAISE NOTICE 'GIG %: DATE CROSSED', $1; RETURN TRUE; END IF;
-        
---         (5) VENUE OVERLOAD: the ticket sold is greater than the venue capacity.
-        SELECT capacity INTO venue_capacity FROM gig JOIN venue USING(venueid) WHERE gigid = gig_id;
-        SELECT COUNT(*) INTO current_order FROM ticket WHERE gigid = gig_id;
-        IF venue_capacity < current_order THEN RAISE NOTICE 'GIG %: VENUE OVERLOAD', $1; RETURN TRUE; END IF;
-    END LOOP;
+
+    /* Check Process: only the first breach (in an order of act's ontime) is raised.*/
+    SELECT violation INTO gig_violation FROM gigViolations(ARRAY[gig_id], ARRAY[gig_date]) ORDER BY act_rank, violation = 'VENUE OVERLOAD' LIMIT 1;
+    IF FOUND THEN
+        RAISE NOTICE 'GIG %: %', gig_id, gig_violation;
+        RETURN TRUE;
+    END IF;
 --     Return FALSE if criteria is not broken.
     RETURN FALSE;
 END
 $$;
 
+/* PROCEDURE checkAllCriteria is the full sweep: it checks every gig which is not cancelled. It is kept for audits, and as it covers every gig, the dirty set is cleared as well.*/
 CREATE OR REPLACE PROCEDURE checkAllCriteria()
 LANGUAGE plpgsql AS $$
 DECLARE
     gig_id INTEGER;
-    gig_status BOOLEAN;
+    gig_violation TEXT;
 BEGIN
-    FOR gig_id IN SELECT gigID FROM gig WHERE gigstatus <> 'Cancelled' LOOP
-        SELECT * INTO gig_status FROM (SELECT * FROM checkCriteria(gig_id)) temp;
+    DELETE FROM gig_dirty;
+--     All gigs are checked in one query, and the first breach of each gig is raised.
+    FOR gig_id, gig_violation IN SELECT DISTINCT ON (gigViolations.gigid) gigViolations.gigid, violation FROM gigViolations(NULL) JOIN gig_report USING(gigid) WHERE NOT gig_report.cancelled ORDER BY gigViolations.gigid, act_rank, violation = 'VENUE OVERLOAD' LOOP
+        RAISE NOTICE 'GIG %: %', gig_id, gig_violation;
     END LOOP;
 END
 $$;
 
-/* [Option 3 Booking a Ticket]: This procedure is to insert a customer's ticket information into TABLE ticket.*/
-CREATE OR REPLACE PROCEDURE insertTicket(gig_id INTEGER, price_type VARCHAR(2), customer_name VARCHAR(100), customer_email VARCHAR(100))
+/* PROCEDURE checkDirtyCriteria is the incremental check: it only checks the given gigs which have been touched (listed in TABLE gig_dirty) since the
+   last check, e.g. the gigs of the option which calls it, so a session never clears (nor is told about) the gigs of another one. NULL checks all
+   touched gigs, as a sweep (e.g. by a maintenance job) for gigs which are touched but never checked by an option (e.g. by a capacity change).
+   The dirty set is taken and cleared in the same statement, so a gig touched during the check is kept for the next one. Rows which another check is
+   clearing are skipped (that check reports them), so checks never queue on each other.*/
+-- The check without gigs (which cleared the touched gigs of every session) is dropped, so an existing database cannot call it by mistake.
+DROP PROCEDURE IF EXISTS checkDirtyCriteria();
+CREATE OR REPLACE PROCEDURE checkDirtyCriteria(gig_ids INTEGER[])
+LANGUAGE plpgsql AS $$
+DECLARE
+    cleared_ids INTEGER[];
+    cleared_dates TIMESTAMP[];
+    gig_id INTEGER;
+    gig_violation TEXT;
+BEGIN
+--     The cleared gigs are read along with their dates (deleted gigs have none, and are not checked), and are given to gigViolations as variables,
+--     so it is inlined and planned for the partitions of their years only (see [Partitioning]).
+    WITH cleared AS (
+            DELETE FROM gig_dirty WHERE gigID IN (SELECT gigID FROM gig_dirty WHERE gig_ids IS NULL OR gigID = ANY(gig_ids) FOR UPDATE SKIP LOCKED)
+            RETURNING gigID)
+    SELECT array_agg(gig_seat.gigID), array_agg(gig_seat.gigdate) INTO cleared_ids, cleared_dates FROM cleared JOIN gig_seat USING(gigID);
+    IF cleared_ids IS NULL THEN
+        RETURN;
+    END IF;
+--     Cancelled gigs are removed from the dirty set without checking, which is the same as what checkAllCriteria does.
+    FOR gig_id, gig_violation IN
+        SELECT DISTINCT ON (gigViolations.gigid) gigViolations.gigid, violation FROM gigViolations(cleared_ids, cleared_dates) JOIN gig_report USING(gigid) WHERE NOT gig_report.cancelled ORDER BY gigViolations.gigid, act_rank, violation = 'VENUE OVERLOAD' LOOP
+        RAISE NOTICE 'GIG %: %', gig_id, gig_violation;
+    END LOOP;
+END
+$$;
+
+/* FUNCTION markGigDirty is a trigger function which adds the gig of a changed row into TABLE gig_dirty. It is shared by TABLE gig, act_gig, and ticket as they all have a gigID column.
+   For an UPDATE, both the old and the new gig are marked in case the row is moved to another gig.*/
+CREATE OR REPLACE FUNCTION markGigDirty()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        INSERT INTO gig_dirty VALUES (OLD.gigID) ON CONFLICT DO NOTHING;
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        INSERT INTO gig_dirty VALUES (NEW.gigID) ON CONFLICT DO NOTHING;
+    END IF;
+    RETURN NULL;
+END
+$$;
+
+/* FUNCTION markGigsDirty is the statement trigger version of markGigDirty for TABLE act_gig and ticket. It reads the transition tables (changed rows),
+   so a bulk change (e.g. an import of tickets) marks each gig once instead of once per row.*/
+CREATE OR REPLACE FUNCTION markGigsDirty()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        INSERT INTO gig_dirty SELECT DISTINCT gigID FROM oldRows ON CONFLICT DO NOTHING;
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        INSERT INTO gig_dirty SELECT DISTINCT gigID FROM newRows ON CONFLICT DO NOTHING;
+    END IF;
+    RETURN NULL;
+END
+$$;
+
+/* FUNCTION markVenueGigDirty is a trigger function which marks all gigs of a venue whose capacity is changed (as it may lead to a VENUE OVERLOAD).*/
+CREATE OR REPLACE FUNCTION markVenueGigDirty()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    INSERT INTO gig_dirty SELECT gigID FROM gig WHERE venueid = NEW.venueid ON CONFLICT DO NOTHING;
+    RETURN NULL;
+END
+$$;
+
+CREATE TRIGGER gigDirty AFTER INSERT OR UPDATE OR DELETE ON gig FOR EACH ROW EXECUTE FUNCTION markGigDirty();
+CREATE TRIGGER actGigDirtyInsert AFTER INSERT ON act_gig REFERENCING NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION markGigsDirty();
+CREATE TRIGGER actGigDirtyUpdate AFTER UPDATE ON act_gig REFERENCING OLD TABLE AS oldRows NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION markGigsDirty();
+CREATE TRIGGER actGigDirtyDelete AFTER DELETE ON act_gig REFERENCING OLD TABLE AS oldRows FOR EACH STATEMENT EXECUTE FUNCTION markGigsDirty();
+CREATE TRIGGER ticketDirtyInsert AFTER INSERT ON ticket REFERENCING NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION markGigsDirty();
+CREATE TRIGGER ticketDirtyUpdate AFTER UPDATE ON ticket REFERENCING OLD TABLE AS oldRows NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION markGigsDirty();
+CREATE TRIGGER ticketDirtyDelete AFTER DELETE ON ticket REFERENCING OLD TABLE AS oldRows FOR EACH STATEMENT EXECUTE FUNCTION markGigsDirty();
+CREATE TRIGGER venueDirty AFTER UPDATE OF capacity ON venue FOR EACH ROW EXECUTE FUNCTION markVenueGigDirty();
+
+/* [Option 3 Booking a Ticket]: This option is to insert a customer's ticket information into TABLE ticket.*/
+/* FUNCTION bookTicket books a ticket and returns the outcome of the booking:
+(1) BOOKED: the ticket is inserted into TABLE ticket.
+(2) GIG NOT FOUND: gig with a given ID is not found.
+(3) PRICETYPE NOT FOUND: gig ticket's pricetype is not found.
+(4) NO AVAILABLE SEAT: the current amount of ticket sold is greater or equal to the venue capacity.
+   The amount of ticket sold is read from TABLE gig_seat instead of counting TABLE ticket. Its row is locked (FOR UPDATE) until the booking
+   commits, so two customers can never take the last seat of a gig at the same time, while customers of different gigs never wait for each other.*/
+CREATE OR REPLACE FUNCTION bookTicket(gig_id INTEGER, price_type VARCHAR(2), customer_name VARCHAR(100), customer_email VARCHAR(100))
+RETURNS TEXT
 LANGUAGE plpgsql AS $$
 DECLARE
     ticket_cost INTEGER;
-    gig_title VARCHAR(100);
     venue_capacity INTEGER;
     current_order INTEGER;
+    gig_date TIMESTAMP;
 BEGIN
     SELECT cost INTO ticket_cost FROM gig_ticket WHERE gigid = gig_id AND pricetype = price_type;
---     The reason why the cost of a gig is not found can be: (1) GIG NOT FOUND; (2) PRICETYPE NOT FOUND. 
-    IF NOT found THEN
-        SELECT gigtitle INTO gig_title FROM gig WHERE gigid = gig_id;
-        IF NOT found THEN
-            RAISE NOTICE 'GIG NOT FOUND';
-        ELSE
-            RAISE NOTICE 'PRICETYPE NOT FOUND';
-        END IF;
-    ELSE
---     Check capacity of the venue and current amount of ticket sold.
-        SELECT capacity INTO venue_capacity FROM gig JOIN venue USING(venueid) WHERE gigid = gig_id;
-        SELECT COUNT(*) INTO current_order FROM ticket WHERE gigid = gig_id;
---         If current amount of ticket sold is equal or greater than the venue capacity, then there is no seat.
-        IF current_order >= venue_capacity THEN
-            RAISE NOTICE 'NO AVAILABLE SEAT';
-        ELSE
---         If no error is encounter then insert the customer's ticket information into TABLE ticket.
-            INSERT INTO ticket VALUES (DEFAULT, gig_id, price_type, ticket_cost, customer_name, customer_email);
+--     The reason why the cost of a gig is not found can be: (1) GIG NOT FOUND; (2) PRICETYPE NOT FOUND.
+    IF NOT FOUND THEN
+        PERFORM 1 FROM gig WHERE gigid = gig_id;
+        IF NOT FOUND THEN
+            RETURN 'GIG NOT FOUND';
         END IF;
+        RETURN 'PRICETYPE NOT FOUND';
+    END IF;
+--     Check capacity of the venue and current amount of ticket sold (and lock the amount until the booking commits), along with the gig date of the ticket.
+    SELECT sold, capacity, gigdate INTO current_order, venue_capacity, gig_date FROM gig_seat JOIN gig USING(gigid, gigdate) JOIN venue USING(venueid) WHERE gigid = gig_id FOR UPDATE OF gig_seat;
+--     If current amount of ticket sold is equal or greater than the venue capacity, then there is no seat.
+    IF NOT FOUND OR current_order >= venue_capacity THEN
+        RETURN 'NO AVAILABLE SEAT';
+    END IF;
+--     If no error is encounter then insert the customer's ticket information into TABLE ticket (TRIGGER ticketSeatInsert adds it to TABLE gig_seat).
+    INSERT INTO ticket VALUES (DEFAULT, gig_id, price_type, ticket_cost, customer_name, customer_email, gig_date);
+    RETURN 'BOOKED';
+END
+$$;
+
+/* PROCEDURE insertTicket books a ticket by FUNCTION bookTicket and raises the outcome as a notice if the ticket is not booked.*/
+CREATE OR REPLACE PROCEDURE insertTicket(gig_id INTEGER, price_type VARCHAR(2), customer_name VARCHAR(100), customer_email VARCHAR(100))
+LANGUAGE plpgsql AS $$
+DECLARE
+    outcome TEXT;
+BEGIN
+    outcome := bookTicket(gig_id, price_type, customer_name, customer_email);
+    IF outcome <> 'BOOKED' THEN
+        RAISE NOTICE '%', outcome;
+    END IF;
+END
+$$;
+
+/* FUNCTION bookTickets books a batch of tickets (the i-th ticket is made of the i-th element of each array) and returns the outcome of each ticket in the same order.
+   The gig_seat rows of all gigs in the batch are locked first in an order of gigID, so two batches of the same gigs cannot deadlock.*/
+CREATE OR REPLACE FUNCTION bookTickets(gig_ids INTEGER[], price_types VARCHAR(2)[], customer_names VARCHAR(100)[], customer_emails VARCHAR(100)[])
+RETURNS SETOF TEXT
+LANGUAGE plpgsql AS $$
+DECLARE
+    x INTEGER;
+BEGIN
+    PERFORM 1 FROM gig_seat WHERE gigid = ANY(gig_ids) ORDER BY gigid FOR UPDATE;
+    FOR x IN 1 .. COALESCE(array_length(gig_ids, 1), 0) LOOP
+        RETURN NEXT bookTicket(gig_ids[x], price_types[x], customer_names[x], customer_emails[x]);
+    END LOOP;
+END
+$$;
+
+/* FUNCTION createGigSeat is a trigger function which creates the gig_seat row (with no ticket sold) of a new gig.*/
+CREATE OR REPLACE FUNCTION createGigSeat()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    INSERT INTO gig_seat VALUES (NEW.gigID, NEW.gigdate, 0);
+    RETURN NULL;
+END
+$$;
+
+/* FUNCTION countGigSeat is a statement trigger function which keeps TABLE gig_seat equal to the amount of tickets of each gig, whoever changes TABLE ticket.
+   It reads the transition tables (inserted / deleted rows), so a bulk change of tickets updates each gig_seat row only once.*/
+CREATE OR REPLACE FUNCTION countGigSeat()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    IF TG_OP = 'UPDATE' THEN
+--         Only a ticket moved to another gig changes the amount, so an update of e.g. cost (option 4) leaves TABLE gig_seat untouched.
+        UPDATE gig_seat SET sold = sold + moved FROM (SELECT gigID, SUM(change) AS moved FROM (SELECT gigID, -1 AS change FROM oldTicket UNION ALL SELECT gigID, 1 FROM newTicket) changes GROUP BY gigID) temp WHERE gig_seat.gigID = temp.gigID AND moved <> 0;
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'DELETE' THEN
+        UPDATE gig_seat SET sold = sold - removed FROM (SELECT gigID, COUNT(*) AS removed FROM oldTicket GROUP BY gigID) temp WHERE gig_seat.gigID = temp.gigID;
+    END IF;
+    IF TG_OP = 'INSERT' THEN
+        UPDATE gig_seat SET sold = sold + added FROM (SELECT gigID, COUNT(*) AS added FROM newTicket GROUP BY gigID) temp WHERE gig_seat.gigID = temp.gigID;
     END IF;
+    RETURN NULL;
 END
 $$;
 
+CREATE TRIGGER gigSeat AFTER INSERT ON gig FOR EACH ROW EXECUTE FUNCTION createGigSeat();
+CREATE TRIGGER ticketSeatInsert AFTER INSERT ON ticket REFERENCING NEW TABLE AS newTicket FOR EACH STATEMENT EXECUTE FUNCTION countGigSeat();
+CREATE TRIGGER ticketSeatUpdate AFTER UPDATE ON ticket REFERENCING OLD TABLE AS oldTicket NEW TABLE AS newTicket FOR EACH STATEMENT EXECUTE FUNCTION countGigSeat();
+CREATE TRIGGER ticketSeatDelete AFTER DELETE ON ticket REFERENCING OLD TABLE AS oldTicket FOR EACH STATEMENT EXECUTE FUNCTION countGigSeat();
+
 
 /* [Option 4: Cancelling an Act]: This option is to cancel a certain act from a specified gig.*/
-/* FUNCTION removeActfromGig removes an act from a gig and then check whether the current gig follows the criteria. If not then cancel the entire gig.*/
+/* FUNCTION removeActfromGig removes an act from a gig and then check whether the current gig follows the criteria. If not then cancel the entire gig.
+   The gig_seat row of the gig is locked first (the same lock and order as FUNCTION bookTicket), so cancellations and bookings of a gig are serialised
+   instead of reading each other's half-done changes or deadlocking, while other gigs are not blocked.
+   The headline is read from TABLE gig_report by gigID (before the act is removed), instead of sorting the line-up.*/
 CREATE OR REPLACE FUNCTION removeActfromGig(gig_id INTEGER, act_name VARCHAR(100))
 RETURNS BOOLEAN
 LANGUAGE plpgsql AS $$
 DECLARE
     act_id INTEGER;
-    act_name_headline VARCHAR(100);
+    headline_id INTEGER;
     max_interval INTERVAL;
     gig_check BOOLEAN;
     match_check TIMESTAMP;
+    gig_date TIMESTAMP;
 BEGIN
+--     The gig date is read with the lock, so act_gig and gig are only read in the partitions of the gig's year.
+    SELECT gigdate INTO gig_date FROM gig_seat WHERE gigID = gig_id FOR UPDATE;
 --     If a given actname is not found, then raise a "ACT NOT FOUND" notice. 
 --     It is likely caused by an input of actname which does not exist.
     SELECT actid INTO act_id FROM act WHERE actname = act_name;
@@ -233,35 +636,35 @@ BEGIN
     END IF;
 --     If a headline is not found, it means the gig does not exist because ever gig must have a headline, and therefore raise a "GIG NOT FOUND" notice.
 --     It is likely caused by an input of gig id which does not exist.
-    SELECT actname INTO act_name_headline FROM option1 WHERE gigid = gig_id ORDER BY ontime DESC limit 1;
-    IF NOT FOUND THEN
+    SELECT headline_actid INTO headline_id FROM gig_report WHERE gigID = gig_id;
+    IF headline_id IS NULL THEN
         RAISE NOTICE 'GIG NOT FOUND';
         RETURN FALSE;
     END IF;
 
 --      If an ontime is not found , it means the act does not exist in this gig.
 --      The act and the gig may exist but they are not in the matching.
-    SELECT ontime INTO match_check FROM act_gig WHERE actid = act_id AND gigid = $1 LIMIT 1;
+    SELECT ontime INTO match_check FROM act_gig WHERE actid = act_id AND gigid = $1 AND gigdate = gig_date LIMIT 1;
     IF NOT FOUND THEN
         RAISE NOTICE 'ACT NOT EXIST IN THIS GIG';
-        RETURN FLASE;
+        RETURN FALSE;
     END IF;
     
     /* Delete process */
-    DELETE FROM act_gig WHERE gigid = gig_id AND actid = act_id;
+    DELETE FROM act_gig WHERE gigid = gig_id AND gigdate = gig_date AND actid = act_id;
     
     /* Check Headline Act: whether the act removed is the headline of the gig.*/
-    IF act_name = act_name_headline THEN
-        UPDATE gig SET gigstatus = 'Cancelled' WHERE gigid = gig_id;
+    IF act_id = headline_id THEN
+        UPDATE gig SET gigstatus = 'Cancelled' WHERE gigid = gig_id AND gigdate = gig_date;
 --         Cancel the entire gig if the act removed is the headline. 
         RAISE NOTICE 'CANCEL GIG DUE TO HEADLINE ACT';
         RETURN TRUE;
     /* Check Criteria: check whether the removal of the act will lead to a breach of criteria (including interval gap) */
     ELSE
-        EXECUTE 'SELECT * INTO gig_check FROM checkCriteria(' || $1 || ')';
+        gig_check := checkCriteria(gig_id);
         IF gig_check IS TRUE THEN
 --         Cancel the entire gig if the removal lead to a breach of criteria. Further notice is raised during the check process.
-            UPDATE gig SET gigstatus = 'Cancelled' WHERE gigid = gig_id;
+            UPDATE gig SET gigstatus = 'Cancelled' WHERE gigid = gig_id AND gigdate = gig_date;
             RAISE NOTICE 'CANCEL GIG DUE TO INTERVAL / TIME CONFLICT';
             RETURN TRUE;
         END IF;
@@ -270,27 +673,165 @@ BEGIN
 END
 $$;
 
-/* PROCEDURE setAffectedTicket is to set the cost to 0 for all tickets which is cancelled (as the gig is cancelled) and create a view include the affected customer's email.*/
-CREATE OR REPLACE PROCEDURE setAffectedTicket(gig_id INTEGER)
+/* FUNCTION cancelTickets sets the cost to 0 for all tickets of the given gigs (as the gigs are cancelled) and returns the affected customer's email of each ticket.
+   The emails come from the same UPDATE (RETURNING), so no view is shared between concurrent cancellations. The gigs should be locked by the caller.
+   The tickets are found by the gig dates in TABLE gig_seat, so only the partitions of their years are read (see [Partitioning]).*/
+CREATE OR REPLACE FUNCTION cancelTickets(gig_ids INTEGER[])
+RETURNS TABLE(gigid INTEGER, customeremail VARCHAR(100))
+LANGUAGE sql AS $$
+    WITH cancelled AS (UPDATE ticket SET cost = 0 FROM gig_seat WHERE gig_seat.gigid = ANY(gig_ids) AND ticket.gigid = gig_seat.gigid AND ticket.gigdate = gig_seat.gigdate
+        RETURNING ticket.ticketid, ticket.gigid, ticket.customeremail)
+    SELECT cancelled.gigid, cancelled.customeremail FROM cancelled ORDER BY cancelled.gigid, cancelled.ticketid;
+$$;
+
+/* FUNCTION cancelAct removes an act from a gig (by FUNCTION removeActfromGig) and returns the emails of affected customers if the gig is cancelled. */
+CREATE OR REPLACE FUNCTION cancelAct(gig_id INTEGER, act_name VARCHAR(100))
+RETURNS SETOF VARCHAR(100)
+LANGUAGE plpgsql AS $$
+BEGIN
+    IF removeActfromGig(gig_id, act_name) THEN
+        RETURN QUERY SELECT customeremail FROM cancelTickets(ARRAY[gig_id]);
+    END IF;
+END
+$$;
+
+/* FUNCTION cancelActs removes many acts in one call, the x-th act of act_names from the x-th gig of gig_ids, and returns the gigID and email of every affected customer.
+   The gig_seat rows of all gigs are locked in the order of gigID first, so two bulk cancellations (or bookings) sharing gigs cannot deadlock.*/
+CREATE OR REPLACE FUNCTION cancelActs(gig_ids INTEGER[], act_names VARCHAR(100)[])
+RETURNS TABLE(gigid INTEGER, customeremail VARCHAR(100))
 LANGUAGE plpgsql AS $$
 DECLARE
+    x INTEGER;
 BEGIN
-    DROP VIEW IF EXISTS VIEW_setAffectedTicket;
---     VIEW VIEW_setAffectedTicket: inlucdes a list of emails of whose tickets are cancelled.
-    EXECUTE 'CREATE VIEW VIEW_setAffectedTicket AS SELECT CustomerEmail FROM ticket WHERE gigid = ' || $1;
---     Set the cost to 0 for tickets of a given gigID.
-    UPDATE ticket SET cost = 0 WHERE gigid = gig_id;
+    PERFORM 1 FROM gig_seat WHERE gig_seat.gigID = ANY(gig_ids) ORDER BY gig_seat.gigID FOR UPDATE;
+    FOR x IN 1 .. COALESCE(array_length(gig_ids, 1), 0) LOOP
+        RETURN QUERY SELECT gig_ids[x], affected FROM cancelAct(gig_ids[x], act_names[x]) AS affected;
+    END LOOP;
 END
 $$;
 
+/* FUNCTION cancelGigs cancels whole gigs (which are not cancelled yet) in one call, and returns the gigID and email of every affected customer.*/
+CREATE OR REPLACE FUNCTION cancelGigs(gig_ids INTEGER[])
+RETURNS TABLE(gigid INTEGER, customeremail VARCHAR(100))
+LANGUAGE plpgsql AS $$
+DECLARE
+    cancelled_ids INTEGER[];
+BEGIN
+    PERFORM 1 FROM gig_seat WHERE gig_seat.gigID = ANY(gig_ids) ORDER BY gig_seat.gigID FOR UPDATE;
+    WITH cancelled AS (UPDATE gig SET gigstatus = 'Cancelled' FROM gig_seat WHERE gig_seat.gigid = ANY(gig_ids) AND gig.gigid = gig_seat.gigid AND gig.gigdate = gig_seat.gigdate
+            AND gigstatus <> 'Cancelled' RETURNING gig.gigid)
+    SELECT ARRAY(SELECT cancelled.gigid FROM cancelled) INTO cancelled_ids;
+    RETURN QUERY SELECT * FROM cancelTickets(cancelled_ids);
+END
+$$;
+
+/* FUNCTION cancelVenueGigs cancels all gigs of a venue which start within [from_time, to_time), e.g. when the venue is closed, and returns the same as FUNCTION cancelGigs.*/
+CREATE OR REPLACE FUNCTION cancelVenueGigs(venue_name VARCHAR(100), from_time TIMESTAMP, to_time TIMESTAMP)
+RETURNS TABLE(gigid INTEGER, customeremail VARCHAR(100))
+LANGUAGE sql AS $$
+    SELECT * FROM cancelGigs(ARRAY(SELECT gig.gigid FROM gig JOIN venue USING(venueid) WHERE venuename = venue_name AND gigdate >= from_time AND gigdate < to_time));
+$$;
+
 
 /* [Option 5: Tickets Needed to Sell]: This option show how many "A"(adult) tickets need selling to reimburse the expense. */
--- VIEW totalActFee: includes the total actfees for gigs (for each by adding its actfees using SUM(actfee));
-CREATE VIEW totalActFee AS SELECT gigid, SUM(actfee) AS total_act_fee FROM act_gig GROUP BY gigid ORDER BY gigid;
+/* The actfees and ticket income of each gig are read from TABLE gig_report, which is kept up to date by the trigger functions below as acts and tickets change.
+   Each trigger is a statement trigger reading the transition tables, so a bulk change updates each gig_report row only once.*/
+-- FUNCTION createGigReport is a trigger function which creates the gig_report row (with no act and no ticket) of a new gig.
+CREATE OR REPLACE FUNCTION createGigReport()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    INSERT INTO gig_report(gigID, gigdate, act_count, total_act_fee, total_ticket_income, cancelled) VALUES (NEW.gigID, NEW.gigdate, 0, 0, 0, NEW.gigstatus = 'Cancelled');
+    RETURN NULL;
+END
+$$;
+
+-- FUNCTION reportActGig is a trigger function which keeps the amount of acts, the total actfee, the headline, and the time span of the gigs whose acts are changed.
+-- It runs in the statement which changes act_gig, so the headline is never out of date within a transaction.
+CREATE OR REPLACE FUNCTION reportActGig()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+DECLARE
+    gig_ids INTEGER[] := '{}';
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        UPDATE gig_report SET act_count = act_count - removed, total_act_fee = total_act_fee - removed_fee FROM (SELECT gigID, COUNT(*) AS removed, SUM(actfee) AS removed_fee FROM oldActGig GROUP BY gigID) temp WHERE gig_report.gigID = temp.gigID;
+        gig_ids := gig_ids || ARRAY(SELECT DISTINCT gigID FROM oldActGig);
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        UPDATE gig_report SET act_count = act_count + added, total_act_fee = total_act_fee + added_fee FROM (SELECT gigID, COUNT(*) AS added, SUM(actfee) AS added_fee FROM newActGig GROUP BY gigID) temp WHERE gig_report.gigID = temp.gigID;
+        gig_ids := gig_ids || ARRAY(SELECT DISTINCT gigID FROM newActGig);
+    END IF;
+--     The headline is the act with the latest ontime, which is read backwards from the primary key of act_gig, and the span is read from the acts of the gig only.
+    UPDATE gig_report SET headline_actid = latest.actID, headline_year = date_part('year', latest.ontime), first_ontime = span.first_ontime, last_offtime = span.last_offtime
+        FROM UNNEST(gig_ids) AS changed(gigID)
+        LEFT OUTER JOIN LATERAL (SELECT actID, ontime FROM act_gig WHERE act_gig.gigID = changed.gigID ORDER BY ontime DESC, actID DESC LIMIT 1) latest ON TRUE
+        CROSS JOIN LATERAL (SELECT MIN(ontime) AS first_ontime, MAX(ontime + duration * INTERVAL '1 minute') AS last_offtime FROM act_gig WHERE act_gig.gigID = changed.gigID) span
+        WHERE gig_report.gigID = changed.gigID;
+    RETURN NULL;
+END
+$$;
+
+-- FUNCTION reportTicket is a trigger function which keeps the total ticket income of the gigs whose tickets are changed (e.g. booked, or set to 0 when the gig is cancelled).
+CREATE OR REPLACE FUNCTION reportTicket()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        UPDATE gig_report SET total_ticket_income = total_ticket_income - removed_income FROM (SELECT gigID, SUM(cost) AS removed_income FROM oldTicket GROUP BY gigID) temp WHERE gig_report.gigID = temp.gigID;
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        UPDATE gig_report SET total_ticket_income = total_ticket_income + added_income FROM (SELECT gigID, SUM(cost) AS added_income FROM newTicket GROUP BY gigID) temp WHERE gig_report.gigID = temp.gigID;
+    END IF;
+    RETURN NULL;
+END
+$$;
+
+-- FUNCTION reportGigStatus is a trigger function which copies the status of the changed gigs into gig_report (cancelled). Only the rows of these gigs are
+-- changed, so cancellations and bookings of different gigs never lock the same row.
+CREATE OR REPLACE FUNCTION reportGigStatus()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS $$
+BEGIN
+    UPDATE gig_report SET cancelled = newGig.gigstatus = 'Cancelled' FROM newGig
+    WHERE gig_report.gigID = newGig.gigID AND gig_report.cancelled <> (newGig.gigstatus = 'Cancelled');
+    RETURN NULL;
+END
+$$;
+
+/* PROCEDURE rebuildReports rebuilds TABLE gig_report and gig_seat from TABLE gig, act_gig, and ticket, e.g. after a bulk load with triggers disabled, or to audit the incremental aggregates.*/
+CREATE OR REPLACE PROCEDURE rebuildReports()
+LANGUAGE plpgsql AS $$
+BEGIN
+    LOCK TABLE gig_report, gig_seat IN EXCLUSIVE MODE;
+    DELETE FROM gig_report;
+    INSERT INTO gig_report SELECT gigID, gigdate, COALESCE(act_count, 0), COALESCE(total_act_fee, 0), COALESCE(total_ticket_income, 0), headline.actID, date_part('year', headline.ontime),
+        first_ontime, last_offtime, gigstatus = 'Cancelled'
+        FROM gig
+        LEFT OUTER JOIN (SELECT gigID, COUNT(*) AS act_count, SUM(actfee) AS total_act_fee, MIN(ontime) AS first_ontime, MAX(ontime + duration * INTERVAL '1 minute') AS last_offtime
+            FROM act_gig GROUP BY gigID) actFee USING(gigID)
+        LEFT OUTER JOIN (SELECT gigID, SUM(cost) AS total_ticket_income FROM ticket GROUP BY gigID) ticketIncome USING(gigID)
+        LEFT OUTER JOIN (SELECT DISTINCT ON (gigID) gigID, actID, ontime FROM act_gig ORDER BY gigID, ontime DESC, actID DESC) headline USING(gigID);
+    DELETE FROM gig_seat;
+    INSERT INTO gig_seat SELECT gigID, gigdate, COUNT(ticketid) FROM gig LEFT OUTER JOIN ticket USING(gigID, gigdate) GROUP BY gigID, gigdate;
+END
+$$;
+
+CREATE TRIGGER gigReport AFTER INSERT ON gig FOR EACH ROW EXECUTE FUNCTION createGigReport();
+CREATE TRIGGER actGigReportInsert AFTER INSERT ON act_gig REFERENCING NEW TABLE AS newActGig FOR EACH STATEMENT EXECUTE FUNCTION reportActGig();
+CREATE TRIGGER actGigReportUpdate AFTER UPDATE ON act_gig REFERENCING OLD TABLE AS oldActGig NEW TABLE AS newActGig FOR EACH STATEMENT EXECUTE FUNCTION reportActGig();
+CREATE TRIGGER actGigReportDelete AFTER DELETE ON act_gig REFERENCING OLD TABLE AS oldActGig FOR EACH STATEMENT EXECUTE FUNCTION reportActGig();
+CREATE TRIGGER ticketReportInsert AFTER INSERT ON ticket REFERENCING NEW TABLE AS newTicket FOR EACH STATEMENT EXECUTE FUNCTION reportTicket();
+CREATE TRIGGER ticketReportUpdate AFTER UPDATE ON ticket REFERENCING OLD TABLE AS oldTicket NEW TABLE AS newTicket FOR EACH STATEMENT EXECUTE FUNCTION reportTicket();
+CREATE TRIGGER ticketReportDelete AFTER DELETE ON ticket REFERENCING OLD TABLE AS oldTicket FOR EACH STATEMENT EXECUTE FUNCTION reportTicket();
+CREATE TRIGGER gigReportUpdate AFTER UPDATE ON gig REFERENCING NEW TABLE AS newGig FOR EACH STATEMENT EXECUTE FUNCTION reportGigStatus();
+
+-- VIEW totalActFee: includes the total actfees for gigs (which have at least one act) from TABLE gig_report.
+CREATE VIEW totalActFee AS SELECT gigid, total_act_fee FROM gig_report WHERE act_count > 0 ORDER BY gigid;
 -- VIEW venueFee: includes the hirecost of required venues.
 CREATE VIEW venueFee AS SELECT gigid, hirecost FROM gig JOIN venue USING(venueid) ORDER BY gigid;
--- VIEW totalTicketIncome includes the total ticket income for different gigs. If no ticket has been sold, it will be 0.
-CREATE VIEW totalTicketIncome AS SELECT gigid, COALESCE(SUM(cost), 0) AS total_ticket_income FROM gig LEFT OUTER JOIN ticket USING(gigid) GROUP BY gigid ORDER BY gigid;
+-- VIEW totalTicketIncome includes the total ticket income for different gigs from TABLE gig_report. If no ticket has been sold, it will be 0.
+CREATE VIEW totalTicketIncome AS SELECT gigid, total_ticket_income FROM gig_report ORDER BY gigid;
 -- VIEW balance gathers all information from VIEW totalActFee, venueFee, and totalTicketIncome along with cost to reimburse.
 CREATE VIEW balance AS SELECT gigid, total_act_fee, hirecost, total_act_fee + hirecost AS total_cost, total_ticket_income, total_act_fee + hirecost - total_ticket_income AS cost_to_reimburse FROM totalactfee JOIN venuefee USING(gigid) JOIN totalticketincome USING(gigid) ORDER BY gigid;
 -- VIEW ticketToSell includes the amount of adult tickets need selling to pay the cost_to_reimburse from VIEW balance.
@@ -299,20 +840,30 @@ CREATE VIEW ticketToSell AS SELECT gigid, cost_to_reimburse, cost AS adult_ticke
 
 
 /* [Option 6: How Many Tickets Sold]: This option shows the amount of tickets an act sold as a headline. */
--- VIEW headlinetime: includes gigID and its headline's ontime (along with gig's year).
-CREATE VIEW headlinetime as select gigid, max(ontime) as ontime, date_part('year', max(ontime)) as year from act_gig group by gigid order by gigid;
--- VIEW gigHeadline: includes gigID and its headline's actname (along with gig's year).
-CREATE VIEW gigHeadline as select act_gig.gigid, actname, year from act_gig join headlinetime using(ontime) join act using(actid);
--- VIEW ticketSold: includes gigID and the amount of ticket sold if the gig is going ahead (not "Cancelled").
-CREATE VIEW ticketSold as select gigid, count(*) as ticket_sold from ticket join gig using(gigid) where gigstatus <> 'Cancelled' group by gigid order by gigid;
--- VIEW actYearTicket: by combining gigHeadline and ticketSold, it includes the name of acts which used to be headline, year of being headline, and amount of tickets of gig as this act being a headline for different years.
-CREATE VIEW actYearTicket as select actname, year::text, sum(ticket_sold) as year_ticket_sold from gigheadline join ticketsold using(gigid) group by (actname, year) order by actname, year;
+-- VIEW gigHeadline: includes gigID and its headline's actname (along with gig's year), read from TABLE gig_report by gigID (one row for each gig with an act).
+CREATE VIEW gigHeadline as select gigid, actname, headline_year as year from gig_report join act on act.actid = gig_report.headline_actid;
+-- VIEW ticketSold: includes gigID and the amount of ticket sold (from TABLE gig_seat) if the gig is going ahead (not "Cancelled") and has sold any ticket.
+CREATE VIEW ticketSold as select gigid, sold as ticket_sold from gig_seat join gig using(gigid, gigdate) where gigstatus <> 'Cancelled' and sold > 0 order by gigid;
+-- VIEW actYearTicket: by combining the headline of gigs (from TABLE gig_report) and ticketSold, it includes the name of acts which used to be headline, year of being headline, and amount of tickets of gig as this act being a headline for different years.
+-- As every aggregate is kept per gig, this view reads one row per gig instead of every ticket, and one row per act for the years rolled up in TABLE act_year_rollup.
+CREATE VIEW actYearTicket as select actname, year::text as year, sum(ticket_sold)::bigint as year_ticket_sold from (
+    select headline_actid as actid, headline_year as year, ticket_sold from gig_report join ticketsold using(gigid) where not exists (select 1 from year_rollup where year_rollup.year = gig_report.headline_year)
+    union all
+    select actid, year, ticket_sold from act_year_rollup join year_rollup using(year)
+) yearTicket join act using(actid) group by (actname, year) order by actname, year;
 -- VIEW actTotalTicket: by adding up the amount of tickets of different years, it includes the name of acts which used to be headline along with total amount of tickets of gig as this act being a headline.  
-CREATE VIEW actTotalTicket as select actname, 'Total' as year, sum(year_ticket_sold), ROW_NUMBER() OVER(ORDER BY sum(year_ticket_sold)) AS rank from actyearticket group by actname order by sum;
+-- Acts with the same total are ranked by actname, so that the order is the same on every read (as the pages of option 6 need).
+CREATE VIEW actTotalTicket as select actname, 'Total' as year, sum(year_ticket_sold), ROW_NUMBER() OVER(ORDER BY sum(year_ticket_sold), actname) AS rank from actyearticket group by actname order by sum;
 -- VIEW rankedActYearTicket: it is a ranked view of actYearTicket in an ascending order of total amount of tickets of gig as an act being a headline.
 CREATE VIEW rankedActYearTicket as select actname, actyearticket.year, year_ticket_sold, rank from actyearticket left outer join acttotalticket using(actname) order by rank, year;
 -- VIEW actUnionTicket: it is a union of VIEW actTotalTicket and rankedActYearTicket, which combines the amount of ticket of "year" and "total" and meanwhile is in a required order (with act name staying together in a block, the block inside is in an order of year with "Total" at last). To achieve the actname block, the VIEW actTotalTicket ranks the actname in an order of ascending amount of total tickets sold. This ranking is inheritted by rankedActYearTicket. Therefore, For actUnionTicket, it must summon all the same actname together as a block. Within the block, it is going to rank by the "Year" column in an order of smaller year - larger year - "Total" (comparable as they are all text).
 CREATE VIEW actUnionTicket AS select actname, year, year_ticket_sold from ((select * from rankedactyearticket) union (select * from acttotalticket) order by rank, year) tempUnion;
+-- VIEW keyedActTicket: the rows of actUnionTicket along with the total of their act, so that they can be read in pages by the key (total_ticket_sold, actname, year), which is the same order as rank, year.
+CREATE VIEW keyedActTicket AS
+    WITH yearly AS (SELECT actname, year, year_ticket_sold, SUM(year_ticket_sold) OVER (PARTITION BY actname) AS total_ticket_sold FROM actYearTicket)
+    SELECT actname, year, year_ticket_sold::NUMERIC AS year_ticket_sold, total_ticket_sold FROM yearly
+    UNION ALL
+    SELECT DISTINCT actname, 'Total', total_ticket_sold, total_ticket_sold FROM yearly;
 
 
 /* [Option 7 Regular Customers]: This option shows a list of regular customers of acts. Regular customer (RC) definition: a customer of the act who buys the ticket of this act being a headline for at least once every "year" (as the "year" means that an act used to be a headline in this year).*/
@@ -320,155 +871,406 @@ CREATE VIEW actUnionTicket AS select actname, year, year_ticket_sold from ((sele
 CREATE VIEW gigTicket AS select gigid, actname, year, ticketid, customername, customeremail from gigHeadline left outer join ticket using(gigid) join gig using(gigid) where gigstatus <> 'Cancelled';
 -- VIEW actHeadlineList: includes name of the headlines and its ranking of alphabetical order (as required).
 CREATE VIEW actHeadlineList AS SELECT ROW_NUMBER() OVER(ORDER BY actname) AS RANK, actname FROM (select DISTINCT actname from gigHeadline) temp;
--- VIEW actHeadlineYear: includes name of the headlines and the year of performance being a headline.
-CREATE VIEW actHeadlineYear AS select DISTINCT actname, year from gigTicket order by actname, year;
+-- VIEW actHeadlineYear: includes name of the headlines and the year of performance being a headline (of a gig which is not cancelled, with or without tickets, the same as in gigTicket).
+CREATE VIEW actHeadlineYear AS select DISTINCT actname, year from gigHeadline join gig using(gigid) where gigstatus <> 'Cancelled' order by actname, year;
 -- VIEW annualHeadline: includes name of the headlines and the amount of the years that an act being a headline for at least once in a year.
 CREATE VIEW annualHeadline AS select actname, count(*) from actheadlineyear group by actname;
 
-/*PROCEDURE getRC is to get all regular customers given an actname and the rank of alphabetical order (as required).*/
-CREATE OR REPLACE PROCEDURE getRC(act_name VARCHAR(100), act_rank INTEGER)
+/* VIEW preparedRC is found by relational division instead of building views for each act and year: a customer is a RC of an act if the amount of
+   distinct years that the customer buys a ticket of the act being a headline equals the amount of years that the act used to be a headline.
+   No view is created at runtime, so option 7 is a single query.*/
+-- VIEW customerYearTicket: includes the amount of tickets that a customer (by name and email) buys in a year for gigs as an act being a headline, from the tickets for the years which are not rolled up, and from TABLE customer_year_rollup for the others.
+CREATE VIEW customerYearTicket AS
+    SELECT actname, year, customername, customeremail, COUNT(*) AS ticket_count FROM gigTicket
+    WHERE ticketid IS NOT NULL AND NOT EXISTS (SELECT 1 FROM year_rollup WHERE year_rollup.year = gigTicket.year) GROUP BY actname, year, customername, customeremail
+    UNION ALL
+    SELECT actname, year, customername, customeremail, ticket_count FROM customer_year_rollup JOIN year_rollup USING(year);
+-- VIEW customerHeadlineYear: includes the amount of years that a customer (by name and email) buys at least one ticket of a gig as an act being a headline.
+CREATE VIEW customerHeadlineYear AS SELECT actname, customername, customeremail, COUNT(DISTINCT year) AS year_count FROM customerYearTicket GROUP BY actname, customername, customeremail;
+-- VIEW customerHeadlineTicket: includes the amount of tickets that a customer (by name) buys for gigs as an act being a headline, which is used to rank the RC of an act.
+CREATE VIEW customerHeadlineTicket AS SELECT actname, customername, SUM(ticket_count)::BIGINT AS ticket_count FROM customerYearTicket GROUP BY actname, customername;
+-- VIEW regularCustomer: includes the RC of acts along with the amount of tickets they buy (by comparing the years of a customer with VIEW annualHeadline).
+CREATE VIEW regularCustomer AS SELECT DISTINCT actname, customername, ticket_count FROM customerHeadlineYear JOIN annualHeadline USING(actname) JOIN customerHeadlineTicket USING(actname, customername) WHERE year_count = annualHeadline.count;
+/* VIEW preparedRC includes:
+(1) actname: name of the act which used to be a headline.
+(2) customername: name of RC, or [None] if the act has no RC.
+It is in an order of actname (alphabetical order), the amount of tickets the RC buys (descending), and customername (if the amount is the same).*/
+-- VIEW rankedRC: the rows of preparedRC along with ticket_count, so that they can be read in pages by the key (actname, ticket_count DESC, customername), which is unique.
+CREATE VIEW rankedRC AS
+    SELECT actname, customername, ticket_count FROM regularCustomer
+    UNION ALL
+    SELECT actname, '[None]', 0 FROM actHeadlineList WHERE NOT EXISTS (SELECT 1 FROM regularCustomer WHERE regularCustomer.actname = actHeadlineList.actname);
+CREATE VIEW preparedRC AS SELECT actname, customername FROM rankedRC ORDER BY actname, ticket_count DESC, customername;
+
+/* [Closed Year Rollup]: Option 6 and 7 read the years which are over (and rolled up) from TABLE act_year_rollup and customer_year_rollup, and the rest
+   from TABLE gig_report and ticket, so the results are the same whether a year is rolled up or not.
+   PROCEDURE rollupClosedYears rolls up each closed year which is not rolled up yet, e.g. by a nightly job. Each year is rolled up in its own transaction,
+   under an advisory lock of that year (keyed by TABLE year_rollup and the year). A write takes the same lock, shared, for each year it expires (see
+   FUNCTION expireYearRollup), so the rollup first waits for the writes of its year in progress, and later writes of that year wait for the rollup and
+   then expire it. No table is locked, so bookings of other years (e.g. of upcoming gigs) never wait for the rollup.
+   It must be called outside a transaction block (e.g. CALL on a connection with AutoCommit), as it commits each year.*/
+CREATE OR REPLACE PROCEDURE rollupClosedYears()
 LANGUAGE plpgsql AS $$
 DECLARE
-    headline_year VARCHAR(5);
-    first_headline_year VARCHAR(5);
-    previous_headline_year VARCHAR(5);
-    last_headline_year VARCHAR(5);
-    customer_name VARCHAR(100);
-    empty_customer_test VARCHAR(100);
-    null_test INTEGER;
-    RC_ticket_amount INTEGER;
-    
-    
+    closed_year INTEGER;
 BEGIN
-        SELECT year INTO first_headline_year FROM actHeadlineYear WHERE actname = act_name limit 1;
-        SELECT year INTO last_headline_year FROM actHeadlineYear WHERE actname = act_name ORDER BY year DESC limit 1;
-        
-        EXECUTE 'DROP VIEW IF EXISTS union' || first_headline_year || '_' || act_rank ||' CASCADE';
-        EXECUTE 'CREATE VIEW union' || first_headline_year || '_' || act_rank || ' AS SELECT DISTINCT actname, customername, customeremail, year::TEXT FROM gigticket WHERE actname = ' || '''' || act_name || '''' || ' AND year::TEXT = ' || '''' || first_headline_year || '''';
-        
---         For a given actname, this part is to collect all customer's information who buy a ticket of a gig as the actname is the headline for all years.
-        FOR headline_year IN SELECT year::TEXT FROM actHeadlineYear WHERE actname = act_name LOOP
-            EXECUTE 'DROP VIEW IF EXISTS regular' || headline_year || '_' || act_rank || ' CASCADE';
---             The view is named by regular first, and then the year of which the given act used to be the headline, and finally the actname's alphabetical order, e.g. regular2017_1.
-            EXECUTE 'CREATE VIEW regular' || headline_year || '_' || act_rank || ' AS SELECT DISTINCT gigid, actname, customername, customeremail, year::TEXT FROM gigticket WHERE actname = ' || '''' || act_name || '''' || ' AND year::TEXT = ' || '''' || headline_year || '''';
-        END LOOP;
-        
---         VIEW lagYear is to derive the last year of which an act used to be the headline, which is important. For example, an act used to be the headline in 2018. It does not        necessarily mean that the last time it be a headline is in 2017 (could be 2016). Therefore, the view provides a correct "last year" of the act being the headline.
-        DROP VIEW IF EXISTS lagYear CASCADE;
-        EXECUTE 'CREATE VIEW lagYear AS select * from (select year, lag(year, 1) over(order by year) from actheadlineyear where actname = ' || '''' ||act_name || '''' || ') temp';
-        
---         For a given actname, this part is to union all the customers who used to buy tickets of a gig that the given act is the headline before a certain year. If this year is the last year that an act played as headline, then this part will include all potential regular customers (who buy at least one ticket of a gig that the given act is the headline).
-        FOR headline_year IN SELECT year::TEXT FROM actHeadlineYear WHERE actname = act_name LOOP
-            IF headline_year = first_headline_year THEN
-                CONTINUE;
-            END IF;
-            EXECUTE 'DROP VIEW IF EXISTS union' || headline_year || '_' || act_rank || ' CASCADE';
-            SELECT lag::text INTO previous_headline_year FROM lagYear WHERE year::text = headline_year;
---             The view is named by union first, and then the year of which the given act used to be the headline, and finally the actname's alphabetical order, e.g. union2017_1. Such a view includes all customers who used to buy a ticket of a gig which an act is the headline. For example, an act whose alphabetical order is 1 used to be headline on 2016, 2017, and 2019. In this case, we have regular2016_1, regular2017_1, and regular2019_1. union2016_1 includes regular2016_1, union2017_1 includes union2016_1 and regular2017_1, and union2019_1 includes union2017_1 and regular2019_1. Therefore, all customers are covered.
-            EXECUTE 'CREATE VIEW union' || headline_year || '_' || act_rank || ' AS (SELECT DISTINCT actname, customername, customeremail, year::TEXT FROM union' || previous_headline_year || '_' || act_rank || ' UNION SELECT DISTINCT actname, customername, customeremail, year::TEXT FROM regular' || headline_year || '_' || act_rank || ')';
-        END LOOP;
-        
---         VIEW groupRC_act_rank is to count the number of each customers buying tickets of headline gigs for different years. If a customer is a RC, then the amount should be equal to the amount of year which an act used to be a headline in a year.
-        EXECUTE 'DROP VIEW IF EXISTS groupRC_' || act_rank || ', selectedRC_' || act_rank || ', sortedRC_' || act_rank || ' CASCADE';
-        EXECUTE 'CREATE VIEW groupRC_' || act_rank || ' AS select actname, COALESCE(customeremail, ' || '''[None]''' || '), COALESCE(customername, ' || '''[None]''' || ') AS customername, count(*) from union' || last_headline_year || '_' || act_rank || ' group by (actname, customeremail, customername)';
-        
---         VIEW selectedRC_act_rank picks the RC from the VIEW groupRC_act_rank, by comparing the times that a customer buys for a gig of act being headline per year.
-        EXECUTE 'CREATE VIEW selectedRC_' || act_rank || ' AS select actname, customername from groupRC_' || act_rank || ' join annualheadline using(actname) where groupRC' || '_' ||act_rank || '.count = annualheadline.count';
-        
---         VIEW selectedRC_null is to test whether a selectedRC_act_rank owns any row or not. If not, it means there are no RC for this act, and therefore should return [None].
-        DROP VIEW IF EXISTS selectedRC_null;
-        EXECUTE 'CREATE VIEW selectedRC_null AS SELECT * FROM selectedRC_' || act_rank;
---         Count the row number of selectedRC_null (selectedRC_act_rank).
-        SELECT COUNT(*) INTO null_test FROM selectedRC_null;
-        IF null_test = 0 THEN
-            EXECUTE 'DROP VIEW selectedRC_' || act_rank || ' CASCADE';
-            EXECUTE 'CREATE VIEW selectedRC_' || act_rank || ' AS select ' || '''' || act_name || '''' || ' as actname, ' || '''[None]''' || ' as customername';
-        END IF;
-        
---         VIEW comparedRC_act_rank contains customers and then rank them by comparing the amount of tickets they buy for a gig of an act being the headline.
-        EXECUTE 'CREATE VIEW comparedRC_' || act_rank || ' AS select ' || act_rank || ' AS rank, selectedrc_' || act_rank || '.actname, selectedrc_' || act_rank || '.customername, COALESCE(gigticket.customername, '|| '''[None]''' || '), COUNT(*) from selectedrc_' || act_rank || ' JOIN gigticket using(actname) group by (selectedrc_' || act_rank || '.actname, selectedrc_' || act_rank || '.customername, gigticket.customername)';
-        
---         VIEW sortedRC_act_rank includes customers who is actually RC whose times that buying for a gig of act being headline per year equals to the total one.
-        EXECUTE 'CREATE VIEW sortedRC_' || act_rank || ' AS select rank, actname, customername, count FROM comparedRC_' || act_rank || ' WHERE customername = coalesce';
-
+    FOR closed_year IN SELECT DISTINCT date_part('year', ontime)::INTEGER FROM act_gig WHERE ontime < date_trunc('year', LOCALTIMESTAMP)
+        EXCEPT SELECT year FROM year_rollup ORDER BY 1 LOOP
+        PERFORM pg_advisory_xact_lock('year_rollup'::regclass::oid::INTEGER, closed_year);
+        DELETE FROM act_year_rollup WHERE year = closed_year;
+        DELETE FROM customer_year_rollup WHERE year = closed_year;
+        INSERT INTO act_year_rollup SELECT headline_actid, headline_year, SUM(ticket_sold) FROM gig_report JOIN ticketSold USING(gigid)
+            WHERE headline_year = closed_year AND headline_actid IS NOT NULL GROUP BY headline_actid, headline_year;
+        INSERT INTO customer_year_rollup SELECT actname, closed_year, customername, customeremail, COUNT(*) FROM gigTicket
+            WHERE ticketid IS NOT NULL AND year = closed_year GROUP BY actname, customername, customeremail;
+--         A rollup which ran at the same time may have rolled up the year while this one waited for the lock.
+        INSERT INTO year_rollup VALUES (closed_year) ON CONFLICT DO NOTHING;
+        COMMIT;
+    END LOOP;
 END
 $$;
 
-/* PROCEDURE getAllRC is to find all the RC for each act by calling PROCEDURE getRC with actname and alphabetical act rank as parameters.*/
-CREATE OR REPLACE PROCEDURE getAllRC()
+/* FUNCTION expireYearRollup is a statement trigger function which removes the years of the changed gigs from TABLE year_rollup, so that they are read
+   from the raw rows until they are rolled up again. The year of a gig in option 6 and 7 is the headline year in TABLE gig_report, so a change of tickets or
+   of a gig removes that year. A change of acts may move the headline to another act (and year), so the years of all acts of the gig (and of the changed
+   acts themselves) are removed instead.
+   Each of these years is locked (shared) until the end of the transaction before it is removed, so a rollup of the year cannot miss the write (see
+   PROCEDURE rollupClosedYears). The years are locked even while none is rolled up, as a rollup may be about to add them.*/
+CREATE OR REPLACE FUNCTION expireYearRollup()
+RETURNS TRIGGER
 LANGUAGE plpgsql AS $$
 DECLARE
-    act_rank INTEGER;
-    act_name VARCHAR(100);
-    last_rank INTEGER;
-BEGIN
--- This part calls PROCEDURE getRC for each act to form a view of RC of the act.
---     This rank is actname's alphabetical ranking.
-    FOR act_rank IN SELECT rank FROM actHeadlineList LOOP
-        SELECT actname INTO act_name FROM actHeadlineList WHERE rank = act_rank;
-        CALL getRC(act_name, act_rank);
-    END LOOP;
-    
-    -- This part collects all RC for different acts before its alphabetical order (inclusively).
-    FOR act_rank IN SELECT rank FROM actHeadlineList LOOP
---         The view is named by unionRC first, and then the alphabetical order.
---         UnionRC_1 should be detected as 1 has no prior order.
-        IF act_rank = 1 THEN
-            DROP VIEW IF EXISTS unionRC_1 CASCADE;
-            CREATE VIEW unionRC_1 AS SELECT * FROM sortedRC_1;
-            CONTINUE;
+    gig_ids INTEGER[];
+    act_years INTEGER[];
+    expired_years INTEGER[];
+    expired_year INTEGER;
+BEGIN
+--     A renamed act changes the headline name of the gigs where it plays.
+    IF TG_TABLE_NAME = 'act' THEN
+        expired_years := ARRAY(SELECT DISTINCT date_part('year', ontime)::INTEGER FROM act_gig WHERE actID IN
+            (SELECT newRows.actID FROM newRows JOIN oldRows USING(actID) WHERE newRows.actname IS DISTINCT FROM oldRows.actname) ORDER BY 1);
+    ELSE
+        IF TG_OP <> 'INSERT' THEN
+            gig_ids := ARRAY(SELECT DISTINCT gigID FROM oldRows);
+            IF TG_TABLE_NAME = 'act_gig' THEN
+                act_years := ARRAY(SELECT DISTINCT date_part('year', ontime) FROM oldRows);
+            END IF;
         END IF;
---         UnionRC_act_rank is to combine unionRC of the last order and sortedRC of current order. Therefore, all acts are covered.
-        EXECUTE 'DROP VIEW IF EXISTS unionRC_' || act_rank || ' CASCADE';
-        EXECUTE 'CREATE VIEW unionRC_' || act_rank || ' AS (SELECT * FROM unionRC_' || (act_rank - 1)::text || ' UNION SELECT * FROM sortedRC_' || act_rank || ' ORDER BY rank, count DESC, customername)';
+        IF TG_OP <> 'DELETE' THEN
+            gig_ids := gig_ids || ARRAY(SELECT DISTINCT gigID FROM newRows);
+            IF TG_TABLE_NAME = 'act_gig' THEN
+                act_years := act_years || ARRAY(SELECT DISTINCT date_part('year', ontime) FROM newRows);
+            END IF;
+        END IF;
+        IF TG_TABLE_NAME = 'act_gig' THEN
+            expired_years := ARRAY(SELECT UNNEST(act_years) UNION SELECT date_part('year', ontime)::INTEGER FROM act_gig WHERE gigID = ANY(gig_ids) ORDER BY 1);
+        ELSE
+            expired_years := ARRAY(SELECT DISTINCT headline_year FROM gig_report WHERE gigID = ANY(gig_ids) AND headline_year IS NOT NULL ORDER BY 1);
+        END IF;
+    END IF;
+--     The years are locked in order, as a rollup waits for one year at a time.
+    FOREACH expired_year IN ARRAY expired_years LOOP
+        PERFORM pg_advisory_xact_lock_shared('year_rollup'::regclass::oid::INTEGER, expired_year);
     END LOOP;
-    
--- This part collects all RC for different acts into VIEW preparedRC, which is proper to be a feedback of option 7.
-    /* VIEW preparedRC includes:
-    (1) actname: name of the act which used to be a headline.
-    (2) customername: name of RC.
-
-    To get (1) actname in VIEW preparedRC, first we form a view which includes the gigID, the name of headline (by obtaining the largest ontime and matching the act), and the year of  performance. Based on this view, we create another view with distinct year, which lists the years of an act used to be a headline (as RC is required to buy a ticket from at least one ticket for each).
-    
-    To get (2) customername, based on the actname and year we derived from the last view, we check whether a customer buy at least one ticket for each year's gig which a certain act is the headline. If so, we add this name to the actname column.*/
-    
---     As UnionRC of the largest rank covers all acts, we select the max rank and feedback unionRC of this rank order by rank(between acts), count(between RC), and customername(if count is the same).
-    SELECT MAX(rank) INTO last_rank FROM actHeadlineList;
-    EXECUTE 'CREATE VIEW preparedRC AS SELECT actname, customername FROM unionRC_' || last_rank || ' ORDER BY rank, count DESC, customername'; 
+    IF cardinality(expired_years) > 0 THEN
+        DELETE FROM year_rollup WHERE year = ANY(expired_years);
+    END IF;
+    RETURN NULL;
 END
 $$;
 
+CREATE TRIGGER actRollup AFTER UPDATE ON act REFERENCING OLD TABLE AS oldRows NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION expireYearRollup();
+CREATE TRIGGER gigRollup AFTER UPDATE ON gig REFERENCING OLD TABLE AS oldRows NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION expireYearRollup();
+CREATE TRIGGER actGigRollupInsert AFTER INSERT ON act_gig REFERENCING NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION expireYearRollup();
+CREATE TRIGGER actGigRollupUpdate AFTER UPDATE ON act_gig REFERENCING OLD TABLE AS oldRows NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION expireYearRollup();
+CREATE TRIGGER actGigRollupDelete AFTER DELETE ON act_gig REFERENCING OLD TABLE AS oldRows FOR EACH STATEMENT EXECUTE FUNCTION expireYearRollup();
+CREATE TRIGGER ticketRollupInsert AFTER INSERT ON ticket REFERENCING NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION expireYearRollup();
+CREATE TRIGGER ticketRollupUpdate AFTER UPDATE ON ticket REFERENCING OLD TABLE AS oldRows NEW TABLE AS newRows FOR EACH STATEMENT EXECUTE FUNCTION expireYearRollup();
+CREATE TRIGGER ticketRollupDelete AFTER DELETE ON ticket REFERENCING OLD TABLE AS oldRows FOR EACH STATEMENT EXECUTE FUNCTION expireYearRollup();
+
+
 /* [Option 8: Economically Feasible Gigs]: This option is to provide a list of economically feasible gigs.
     Economically Feasible Gig Definition: a gig can reimburse the venue hirecost and the act standardfee by selling ticket of average price within the venue capacity limit.
     Proportion of tickets Definition: amount of tickets required to reimburse total expense (hirecost and standardfee) / venue capacity.
 */
-CREATE OR REPLACE PROCEDURE searchFeasibleGig()
+/* FUNCTION feasibleGigs lists, for each venue, the acts which make an economically feasible gig and the least amount of tickets (of average price) to
+   reimburse the total cost, in the order of venuename, proportion of venue usage (descending), and actname. With top_k, only the first top_k acts of each venue are listed.
+   To get ticket_required: the average price of ticket (of gigs which are not cancelled) is read from TABLE gig_report and gig_seat, which keep the ticket income,
+   the status, and the amount of tickets of each gig, so neither a ticket nor a gig is read. It is summed when option 8 is read, instead of being kept as a running
+   total, as a total shared by all gigs would be locked by every booking. Based on the average price, we can calculate the maximum income (average price * capacity). We use this
+   income to minus the total cost (venue's hirecost and act's standardfee), which is the pure interest. As the option aims to "get even", we divide the pure interest by
+   the average price of tickets, which means the maximum amount of tickets that we do not need to "get even". After that, we use capacity to minus this maximum amount of
+   tickets we don't need and then get the least amount of tickets that we need to "get even". Notice that a ceiling is required here as decimal digits does not work for
+   the amount of ticket.
+   Instead of matching every act with every venue, each venue only reads the acts whose standardfee is at most capacity * average price - hirecost (the other acts can
+   never be feasible there) from INDEX act_standardfee_idx. The average price is computed in NUMERIC from its FLOAT text, exactly as it used to be pasted into the views.
+   ticket_required grows with standardfee, so with top_k the first top_k acts of a venue are read backwards from the same index (the top_k-th of them gives the
+   least fee needed). As ticket_required is rounded up, acts a little cheaper may need as many tickets (and come first by actname), so the acts down to one
+   average price below that fee are ranked as well, which are few.
+   The rows come from FUNCTION keyedFeasibleGigs, which also returns the key of each row, so that option 8 can be read in pages.*/
+/* FUNCTION keyedFeasibleGigs returns the rows of feasibleGigs (unordered) along with their key (venuename, proportion DESC, actname, venueid, actid).
+   As neither venuename nor actname is unique, the ids are the last part of the key. It is a single query, so it is inlined into the query which reads it,
+   and a condition on venuename only reads the venues from there on.*/
+CREATE OR REPLACE FUNCTION keyedFeasibleGigs(top_k INTEGER DEFAULT NULL)
+RETURNS TABLE(venuename VARCHAR(100), actname VARCHAR(100), ticket_required NUMERIC, proportion FLOAT, venueid INTEGER, actid INTEGER)
+LANGUAGE sql STABLE AS $$
+    WITH averagePrice AS (
+        SELECT (SUM(gig_report.total_ticket_income)::FLOAT / NULLIF(SUM(gig_seat.sold), 0))::TEXT::NUMERIC AS price
+        FROM gig_report JOIN gig_seat USING(gigID) WHERE NOT gig_report.cancelled
+    )
+    SELECT venue.venuename, feasible.actname, feasible.ticket_required, feasible.ticket_required::FLOAT / venue.capacity, venue.venueid, feasible.actid
+    FROM averagePrice, venue
+--     The fees are compared as BIGINT, so that the index on the INTEGER standardfee is used (for an integer fee, fee <= x is fee <= FLOOR(x)).
+    CROSS JOIN LATERAL (SELECT FLOOR(venue.capacity * averagePrice.price - venue.hirecost)::BIGINT AS max_fee, FLOOR(averagePrice.price)::BIGINT + 1 AS price_step) budget
+    LEFT OUTER JOIN LATERAL (
+        SELECT act.standardfee FROM act WHERE top_k IS NOT NULL AND act.standardfee <= budget.max_fee
+        ORDER BY act.standardfee DESC OFFSET GREATEST(top_k - 1, 0) LIMIT 1
+    ) least ON TRUE
+    CROSS JOIN LATERAL (
+        SELECT act.actID, act.actname, CEILING(venue.capacity - (venue.capacity * averagePrice.price - (venue.hirecost + act.standardfee)) / averagePrice.price) AS ticket_required
+        FROM act WHERE act.standardfee <= budget.max_fee AND act.standardfee >= COALESCE(least.standardfee - budget.price_step, 0)
+        ORDER BY 3 DESC, act.actname, act.actID LIMIT top_k
+    ) feasible;
+$$;
+
+CREATE OR REPLACE FUNCTION feasibleGigs(top_k INTEGER DEFAULT NULL)
+RETURNS TABLE(venuename VARCHAR(100), actname VARCHAR(100), ticket_required NUMERIC)
+LANGUAGE sql STABLE AS $$
+    SELECT venuename, actname, ticket_required FROM keyedFeasibleGigs(top_k) ORDER BY venuename, proportion DESC, actname, venueid, actid;
+$$;
+
+-- VIEW sortedFeasibleGig: all economically feasible gigs (see FUNCTION feasibleGigs), which are computed when the view is read.
+-- It only depends on the function (not on a table), so it is not dropped with the tables above.
+DROP VIEW IF EXISTS sortedFeasibleGig;
+CREATE VIEW sortedFeasibleGig AS SELECT * FROM feasibleGigs();
+
+
+/* [Bulk Import and Export]: Tickets and line-ups are loaded in bulk (see TicketTransfer.java) by COPY into staging tables, and then checked and inserted set-wise.
+   The staging tables are temporary, so each session imports into its own, and they are emptied at the end of each transaction.
+   Every column is staged as TEXT, so that a row with a bad value is rejected on its own instead of failing the whole COPY.*/
+-- PROCEDURE beginImport creates the staging tables of this session (if needed) and empties them, so that import_row numbers the rows of the next COPY from 1.
+CREATE OR REPLACE PROCEDURE beginImport()
 LANGUAGE plpgsql AS $$
-DECLARE
-    ticketIncome FLOAT;
-    ticketAmount INTEGER;
-    ticketAveragePrice FLOAT;
-BEGIN
---     FLOAT ticketIncome: calculates the sum of all tickets of gigs which are not cancelled.
-    select sum(cost)::FLOAT INTO ticketIncome from ticket join gig using(gigid) where gigstatus <> 'Cancelled';
---     INTEGER ticketAmount: calculates the amount of all tickets of gigs which are not cancelled.
-    select count(cost) INTO ticketAmount from ticket join gig using(gigid) where gigstatus <> 'Cancelled';
---     FLOAT ticketAveragePrice: average price of all tickets of gigs which are not cancelled.
-    select ticketIncome / ticketAmount INTO ticketAveragePrice;
-    
-    DROP VIEW IF EXISTS actVenue, feasiblegigList, feasiblegigTicket, sortedFeasibleGig CASCADE;
---     VIEW actVenue: lists all matching of venue and act along with their cost by cross join of TABLE venue and act.
-    CREATE VIEW actVenue AS select venuename, actname, hirecost, standardfee, hirecost + standardfee as total_cost, capacity from venue cross join act;
---     VIEW feasibleGigList: includes name of venue and name of act which are an economically feasible matching, cost (venue's hirecost and act's standardfee), and venue's capacity.
-    EXECUTE 'CREATE VIEW feasibleGigList AS SELECT venuename, actname, total_cost, capacity FROM actVenue WHERE capacity * ' || ticketAveragePrice || ' >= total_cost';
-    
---     VIEW feasibleGigTicket: based on VIEW feasibleGigList, it includes an extra column ticket_required.
-    /* To get ticket_required:
-    first we create a VIEW actVenue by cross joining act and venue, so we can derive the total cost (venue's hirecost and act's standardfee). Then we calculate the average price of ticket (of gigs which are not cancelled). Based on the average price, we can calculate the maximum income (average price * capacity). We use this income to minus the total cost, which is the pure interest. As the option aims to "get even", we need to get the amount of tickets required to reimburse the total cost. Therefore, we divide the pure interest by the average price of tickets, which means the maximum amount of tickets that we do not need to "get even". After that, we use capacity to minus this maximum amount of tickets we don't need and then get the least amount of tickets that we need to "get even". Notice that a ceiling is required here as decimal digits does not work for the amount of ticket.
-    */
-    EXECUTE 'CREATE VIEW feasibleGigTicket AS select *, CEILING(capacity - (capacity * ' || ticketAveragePrice || ' - total_cost) / ' || ticketAveragePrice || ') as ticket_required from feasiblegiglist';
---     VIEW sortedFeasibleGig: based on VIEW feasiblegigTicket, it ranks the rows in an order of venuename, proportion of venue usage (descending) to reimburse the cost, and actname.
-    CREATE VIEW sortedFeasibleGig AS SELECT venuename, actname, ticket_required FROM feasiblegigTicket ORDER BY venuename, ticket_required::FLOAT / capacity DESC, actname;
+BEGIN
+--     The tables are looked up first, as CREATE TABLE IF NOT EXISTS would raise a notice on every import.
+    IF to_regclass('pg_temp.ticket_import') IS NULL THEN
+        CREATE TEMP TABLE ticket_import(
+            import_row BIGINT GENERATED ALWAYS AS IDENTITY, gigid TEXT, pricetype TEXT, customername TEXT, customeremail TEXT,
+            gig_id INTEGER, ticket_cost INTEGER, outcome TEXT
+        ) ON COMMIT DELETE ROWS;
+    END IF;
+    IF to_regclass('pg_temp.act_gig_import') IS NULL THEN
+        CREATE TEMP TABLE act_gig_import(
+            import_row BIGINT GENERATED ALWAYS AS IDENTITY, gigid TEXT, actid TEXT, actfee TEXT, ontime TEXT, duration TEXT,
+            gig_id INTEGER, act_id INTEGER, act_fee INTEGER, on_time TIMESTAMP, act_duration INTEGER, outcome TEXT
+        ) ON COMMIT DELETE ROWS;
+    END IF;
+    TRUNCATE ticket_import, act_gig_import RESTART IDENTITY;
+END
+$$;
+
+/* FUNCTION isImportInteger and FUNCTION isImportTimestamp tell whether a staged value can be cast to INTEGER or TIMESTAMP (FALSE for a missing value),
+   so a bad row is marked instead of failing the import. An integer is checked by its digits and range, without a cast which could fail.
+   A timestamp has too many forms for a pattern, so it is cast in its own exception block, which is only entered for the ontime of line-ups.*/
+CREATE OR REPLACE FUNCTION isImportInteger(value TEXT)
+RETURNS BOOLEAN
+LANGUAGE sql IMMUTABLE AS $$
+    SELECT CASE WHEN value ~ '^\s*[+-]?[0-9]{1,10}\s*$' THEN value::BIGINT BETWEEN -2147483648 AND 2147483647 ELSE FALSE END;
+$$;
 
+CREATE OR REPLACE FUNCTION isImportTimestamp(value TEXT)
+RETURNS BOOLEAN
+LANGUAGE plpgsql STABLE AS $$
+BEGIN
+    PERFORM value::TIMESTAMP;
+    RETURN value IS NOT NULL;
+EXCEPTION WHEN data_exception THEN
+    RETURN FALSE;
+END
+$$;
+
+/* FUNCTION importTickets books the tickets in TABLE ticket_import by the same rules as FUNCTION bookTicket, but for all of them at once:
+(0) INVALID ROW: a value is missing, is not a number, or is too long.
+(1) GIG NOT FOUND: gig with a given ID is not found.
+(2) PRICETYPE NOT FOUND: gig ticket's pricetype is not found.
+(3) NO AVAILABLE SEAT: the gig is full. Tickets of a gig are booked in the order of rows, so the first rows get the remaining seats.
+   The gig_seat rows of all gigs are locked in the order of gigID first (the same as FUNCTION bookTickets), so an import and bookings cannot oversell a gig or deadlock.
+   Booked tickets are inserted by one INSERT, so the triggers on TABLE ticket run once, and the rejected rows are returned in the order of rows.*/
+CREATE OR REPLACE FUNCTION importTickets()
+RETURNS TABLE(import_row BIGINT, gigid TEXT, outcome TEXT)
+LANGUAGE plpgsql AS $$
+BEGIN
+    UPDATE ticket_import SET outcome = 'INVALID ROW'
+    WHERE (isImportInteger(ticket_import.gigid) AND char_length(ticket_import.pricetype) <= 2
+        AND char_length(ticket_import.customername) <= 100 AND char_length(ticket_import.customeremail) <= 100)
+        IS NOT TRUE;
+    UPDATE ticket_import SET gig_id = ticket_import.gigid::INTEGER WHERE ticket_import.outcome IS NULL;
+
+    PERFORM 1 FROM gig_seat WHERE gig_seat.gigID IN (SELECT gig_id FROM ticket_import WHERE ticket_import.outcome IS NULL) ORDER BY gig_seat.gigID FOR UPDATE;
+
+    UPDATE ticket_import SET ticket_cost = gig_ticket.cost FROM gig_ticket
+    WHERE ticket_import.outcome IS NULL AND gig_ticket.gigID = ticket_import.gig_id AND gig_ticket.pricetype = ticket_import.pricetype;
+    UPDATE ticket_import SET outcome = CASE WHEN EXISTS (SELECT 1 FROM gig WHERE gig.gigID = ticket_import.gig_id) THEN 'PRICETYPE NOT FOUND' ELSE 'GIG NOT FOUND' END
+    WHERE ticket_import.outcome IS NULL AND ticket_cost IS NULL;
+
+--     The seat of each ticket is the amount sold plus its rank in the gig, which must be within the capacity.
+    UPDATE ticket_import SET outcome = CASE WHEN seat.sold + seat.seat_rank <= seat.capacity THEN 'BOOKED' ELSE 'NO AVAILABLE SEAT' END
+    FROM (SELECT ticket_import.import_row, gig_seat.sold, venue.capacity, ROW_NUMBER() OVER(PARTITION BY ticket_import.gig_id ORDER BY ticket_import.import_row) AS seat_rank
+        FROM ticket_import JOIN gig_seat ON gig_seat.gigID = ticket_import.gig_id JOIN gig ON gig.gigID = ticket_import.gig_id JOIN venue USING(venueid)
+        WHERE ticket_import.outcome IS NULL) seat
+    WHERE ticket_import.import_row = seat.import_row;
+
+    INSERT INTO ticket(gigID, pricetype, cost, CustomerName, CustomerEmail, gigdate)
+    SELECT ticket_import.gig_id, ticket_import.pricetype, ticket_import.ticket_cost, ticket_import.customername, ticket_import.customeremail, gig_seat.gigdate
+    FROM ticket_import JOIN gig_seat ON gig_seat.gigID = ticket_import.gig_id WHERE ticket_import.outcome = 'BOOKED' ORDER BY ticket_import.import_row;
+
+    RETURN QUERY SELECT ticket_import.import_row, ticket_import.gigid, COALESCE(ticket_import.outcome, 'NO AVAILABLE SEAT') FROM ticket_import
+    WHERE ticket_import.outcome IS DISTINCT FROM 'BOOKED' ORDER BY ticket_import.import_row;
+END
+$$;
+
+/* FUNCTION importActGigs adds the acts in TABLE act_gig_import to the line-ups of their gigs, and rejects:
+(0) INVALID ROW: a value is missing, is not a number (or a timestamp), or is negative.
+(1) GIG NOT FOUND / ACT NOT FOUND: the gig or act with a given ID is not found.
+(2) DUPLICATE ACT: the act already starts at the same time in the gig (or the row is repeated).
+(3) The first breach of the new line-up (the same text as FUNCTION gigViolations, e.g. TIME CONFLICT): the line-up of a gig is imported
+    as a whole, so all rows of a gig are rejected if the gig breaks the criteria with them, and the gig is left as it was.
+   The gig_seat rows are locked in the order of gigID first, which is the lock taken by cancellations, so the line-ups cannot change while they are checked.*/
+CREATE OR REPLACE FUNCTION importActGigs()
+RETURNS TABLE(import_row BIGINT, gigid TEXT, outcome TEXT)
+LANGUAGE plpgsql AS $$
+BEGIN
+    UPDATE act_gig_import SET outcome = 'INVALID ROW'
+    WHERE (isImportInteger(act_gig_import.gigid) AND isImportInteger(act_gig_import.actid)
+        AND isImportInteger(act_gig_import.actfee) AND isImportInteger(act_gig_import.duration)
+        AND isImportTimestamp(act_gig_import.ontime))
+        IS NOT TRUE;
+    UPDATE act_gig_import SET gig_id = act_gig_import.gigid::INTEGER, act_id = act_gig_import.actid::INTEGER, act_fee = act_gig_import.actfee::INTEGER,
+        on_time = act_gig_import.ontime::TIMESTAMP, act_duration = act_gig_import.duration::INTEGER
+    WHERE act_gig_import.outcome IS NULL;
+    UPDATE act_gig_import SET outcome = 'INVALID ROW' WHERE act_gig_import.outcome IS NULL AND (act_fee < 0 OR act_duration < 0);
+
+    PERFORM 1 FROM gig_seat WHERE gig_seat.gigID IN (SELECT gig_id FROM act_gig_import WHERE act_gig_import.outcome IS NULL) ORDER BY gig_seat.gigID FOR UPDATE;
+
+    UPDATE act_gig_import SET outcome = CASE
+            WHEN NOT EXISTS (SELECT 1 FROM gig WHERE gig.gigID = act_gig_import.gig_id) THEN 'GIG NOT FOUND'
+            WHEN NOT EXISTS (SELECT 1 FROM act WHERE act.actID = act_gig_import.act_id) THEN 'ACT NOT FOUND'
+            ELSE 'DUPLICATE ACT'
+        END
+    WHERE act_gig_import.outcome IS NULL AND (NOT EXISTS (SELECT 1 FROM gig WHERE gig.gigID = act_gig_import.gig_id)
+        OR NOT EXISTS (SELECT 1 FROM act WHERE act.actID = act_gig_import.act_id)
+        OR EXISTS (SELECT 1 FROM act_gig WHERE act_gig.gigID = act_gig_import.gig_id AND act_gig.ontime = act_gig_import.on_time AND act_gig.actID = act_gig_import.act_id));
+    UPDATE act_gig_import SET outcome = 'DUPLICATE ACT' FROM act_gig_import earlier
+    WHERE act_gig_import.outcome IS NULL AND earlier.outcome IS NULL AND earlier.import_row < act_gig_import.import_row
+        AND earlier.gig_id = act_gig_import.gig_id AND earlier.on_time = act_gig_import.on_time AND earlier.act_id = act_gig_import.act_id;
+
+    INSERT INTO act_gig(actID, gigID, actfee, ontime, duration, gigdate)
+    SELECT act_gig_import.act_id, act_gig_import.gig_id, act_gig_import.act_fee, act_gig_import.on_time, act_gig_import.act_duration, gig_seat.gigdate
+    FROM act_gig_import JOIN gig_seat ON gig_seat.gigID = act_gig_import.gig_id WHERE act_gig_import.outcome IS NULL;
+
+--     The new line-ups are checked at once, and each gig which breaks the criteria gets its first breach (in an order of ontime) as the outcome of its rows.
+    UPDATE act_gig_import SET outcome = breach.violation
+    FROM (SELECT DISTINCT ON (gigViolations.gigid) gigViolations.gigid, gigViolations.violation
+        FROM gigViolations(ARRAY(SELECT DISTINCT gig_id FROM act_gig_import WHERE act_gig_import.outcome IS NULL))
+        ORDER BY gigViolations.gigid, act_rank, gigViolations.violation = 'VENUE OVERLOAD') breach
+    WHERE act_gig_import.outcome IS NULL AND act_gig_import.gig_id = breach.gigid;
+    DELETE FROM act_gig USING act_gig_import
+    WHERE act_gig_import.outcome IS NOT NULL AND act_gig_import.outcome NOT IN ('INVALID ROW', 'GIG NOT FOUND', 'ACT NOT FOUND', 'DUPLICATE ACT')
+        AND act_gig.gigID = act_gig_import.gig_id AND act_gig.ontime = act_gig_import.on_time AND act_gig.actID = act_gig_import.act_id;
+
+    RETURN QUERY SELECT act_gig_import.import_row, act_gig_import.gigid, act_gig_import.outcome FROM act_gig_import
+    WHERE act_gig_import.outcome IS NOT NULL ORDER BY act_gig_import.import_row;
+END
+$$;
+
+
+/* [Read Replica]: Option 5 to 8 only read, so they may run on a read-only copy of the database (see ReplicaRouter.java), either a hot standby
+    (streaming replication) or a second instance which receives the tables by logical replication. FUNCTION replicationLag, run on the copy,
+    tells how far (in milliseconds) it is behind the primary, and the reports go back to the primary while it is too far behind.*/
+/* TABLE replica_heartbeat holds a single timestamp, which is written on the primary (by PROCEDURE beatReplicaHeartbeat) every few seconds and
+    replicated along with the other tables, so its age on the copy is the lag (with the interval of beats on top). It is NULL while no heartbeat
+    runs: before the first beat, and after PROCEDURE stopReplicaHeartbeat.*/
+CREATE TABLE replica_heartbeat(
+    id INTEGER NOT NULL PRIMARY KEY CHECK (id = 1),
+    beat TIMESTAMPTZ
+);
+
+INSERT INTO replica_heartbeat VALUES (1, NULL);
+
+CREATE OR REPLACE PROCEDURE beatReplicaHeartbeat()
+LANGUAGE SQL
+AS $$
+    UPDATE replica_heartbeat SET beat = clock_timestamp() WHERE id = 1;
+$$;
+
+CREATE OR REPLACE PROCEDURE stopReplicaHeartbeat()
+LANGUAGE SQL
+AS $$
+    UPDATE replica_heartbeat SET beat = NULL WHERE id = 1;
+$$;
+
+/* FUNCTION replicationLag returns the lag of this database in milliseconds, or NULL if it is unknown:
+    (1) While a heartbeat runs, the lag is the age of the heartbeat, on a standby as on any other copy. It grows whenever the copy stops receiving
+        or replaying, even while its WAL receiver is far behind the primary and has nothing left to replay.
+    Without a heartbeat, only a hot standby can tell its lag, from what it has received and replayed (which misses a receiver behind the primary):
+    (2) A hot standby without a WAL receiver (e.g. the primary is down) does not know its lag. Only the receiver's pid is shown to every user, so its row is enough.
+    (3) A hot standby which has replayed all WAL received has no lag, even if the primary is idle (and the last replayed commit is old).
+    (4) A hot standby which is replaying is behind by the age of the last replayed commit.
+    (5) A database which is not a standby does not know its lag.*/
+CREATE OR REPLACE FUNCTION replicationLag()
+RETURNS DOUBLE PRECISION
+LANGUAGE SQL
+STABLE
+AS $$
+    SELECT CASE
+        WHEN beat IS NOT NULL THEN 1000 * extract(epoch FROM clock_timestamp() - beat)
+        WHEN NOT pg_is_in_recovery() THEN NULL
+        WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver) THEN NULL
+        WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0
+        ELSE 1000 * extract(epoch FROM clock_timestamp() - pg_last_xact_replay_timestamp())
+    END::DOUBLE PRECISION
+    FROM replica_heartbeat WHERE id = 1;
+$$;
+
+
+/* [Physical Design Check]: FUNCTION checkHotQueryPlans runs EXPLAIN on the hot query of each option (for the latest gig) and shows whether it
+    avoids a sequential scan of the large tables (gig, act_gig, gig_ticket, ticket, gig_seat, gig_report). Run ANALYZE first, as the planner rightly prefers a
+    sequential scan while the tables are small, e.g. SELECT * FROM checkHotQueryPlans() WHERE NOT uses_index;
+    A scan of a partition of gig, act_gig, or ticket is named after the partition (e.g. ticket_2027). A read by gigID alone has an index scan of each
+    partition (one per year), while in a join USING(gigid, gigdate) only the partition of the gig is executed, as the others are pruned at run time.*/
+CREATE OR REPLACE FUNCTION checkHotQueryPlans()
+RETURNS TABLE(query_name TEXT, uses_index BOOLEAN, query_plan TEXT)
+LANGUAGE plpgsql AS $$
+DECLARE
+    gig_id INTEGER;
+    act_id INTEGER;
+    gig_date TIMESTAMP;
+    hot_query RECORD;
+    plan_line TEXT;
+BEGIN
+    SELECT COALESCE(MAX(gigID), 0) INTO gig_id FROM gig;
+    SELECT gigdate INTO gig_date FROM gig_seat WHERE gigID = gig_id;
+    SELECT COALESCE(MAX(actID), 0) INTO act_id FROM act_gig WHERE gigID = gig_id;
+    FOR hot_query IN SELECT * FROM (VALUES
+        ('option 1: line-up', format('SELECT actname, ontime, offtime FROM option1 WHERE gigID = %s ORDER BY ontime', gig_id)),
+        ('option 2 / 4: criteria check', format('SELECT * FROM gigViolations(ARRAY[%s], ARRAY[%L::TIMESTAMP])', gig_id, gig_date)),
+        ('option 3: ticket price', format('SELECT cost FROM gig_ticket WHERE gigid = %s AND pricetype = %L', gig_id, 'A')),
+        ('option 3: seat sold', format('SELECT sold, capacity FROM gig_seat JOIN gig USING(gigid, gigdate) JOIN venue USING(venueid) WHERE gigid = %s', gig_id)),
+        ('option 3: ticket count', format('SELECT COUNT(*) FROM ticket WHERE gigid = %s', gig_id)),
+        ('option 4: headline', format('SELECT headline_actid FROM gig_report WHERE gigid = %s', gig_id)),
+        ('option 4: act in gig', format('SELECT ontime FROM act_gig WHERE actid = %s AND gigid = %s AND gigdate = %L LIMIT 1', act_id, gig_id, gig_date)),
+        ('option 4: affected ticket', format('SELECT CustomerEmail FROM gig_seat JOIN ticket USING(gigid, gigdate) WHERE gigid = %s', gig_id)),
+        ('option 6 / 7: headline', format('SELECT actname, year FROM gigHeadline WHERE gigid = %s', gig_id))
+    ) AS hotQuery(name, statement) LOOP
+        query_name := hot_query.name;
+        query_plan := '';
+        FOR plan_line IN EXECUTE 'EXPLAIN ' || hot_query.statement LOOP
+            query_plan := query_plan || plan_line || E'\n';
+        END LOOP;
+--         A sequential scan of an empty partition (e.g. of a year ahead, which has no page yet) reads nothing, so it is not counted.
+        uses_index := NOT EXISTS (SELECT 1 FROM regexp_matches(query_plan, 'Seq Scan on ((gig|act_gig|ticket)(_\w+)?|gig_ticket|gig_seat|gig_report)\M', 'g') seqScan
+            JOIN pg_class ON pg_class.oid = to_regclass(seqScan[1]) WHERE pg_class.relpages > 0);
+        RETURN NEXT;
+    END LOOP;
 END
 $$;